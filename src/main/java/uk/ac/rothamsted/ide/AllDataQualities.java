@@ -1,36 +1,28 @@
 package uk.ac.rothamsted.ide;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
 import com.hp.hpl.jena.rdf.model.*;
 import org.apache.log4j.Logger;
-import org.apache.log4j.PropertyConfigurator;
 import org.sadiframework.service.annotations.*;
-import org.sadiframework.service.simple.SimpleSynchronousServiceServlet;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
-import java.util.Iterator;
 
 @Name("allDataQualities")
 @Description("NWFP rest API: List all measures of the quality of data by their unique identifiers")
 @ContactEmail("sadnanalmanir@gmail.com")
 @InputClass("http://localhost:8080/ontology/service-ontology/allDataQualities.owl#Input")
 @OutputClass("http://localhost:8080/ontology/service-ontology/allDataQualities.owl#Output")
-public class AllDataQualities extends SimpleSynchronousServiceServlet {
+public class AllDataQualities extends StreamingSynchronousServiceServlet {
 
     private static final Logger log = Logger.getLogger(AllDataQualities.class);
 
+    private static final EmissionPlan EMISSION = EmissionPlan.builder(Vocab.type, Vocab.has_value)
+            .field("Id", Vocab.has_dataQualityId, Vocab.DataQualityId, XSDDatatype.XSDint)
+            .build();
+
     @Override
     public void processInput(Resource input, Resource output) {
 
-        PropertyConfigurator.configure(log.getClass().getClassLoader().getResource("log4j.properties"));
-
         log.info("*** SADI Service ***");
         log.info("Invoking SADI service: allDataQualities");
 
@@ -38,62 +30,23 @@ public class AllDataQualities extends SimpleSynchronousServiceServlet {
         Model outputModel = output.getModel();
 
         try {
-            // initiate GET request to the endpoint
+            // endpoint serving the list
             String endPoint = "https://nwfp.rothamsted.ac.uk:8443/getDataQualities";
-            URL url = new URL(endPoint);
             long startTime = System.currentTimeMillis();
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            // set connection timeout to 5 seconds
-            conn.setConnectTimeout(5000);
-            // set content reading timeout to 20 seconds
-            conn.setReadTimeout(20000);
-            conn.addRequestProperty("Accept-Language", "en-US,en;q=0.8");
-            conn.addRequestProperty("User-Agent", "Mozilla");
-            log.info("Request URL: " + url);
-
-            // gather response from the request
-            int status = conn.getResponseCode();
-            if (status == HttpURLConnection.HTTP_OK) {
-                log.info("'GET' Request is Successful. Http Status Code: " + status);
-                BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8));
-                String inputLine;
-                StringBuilder response = new StringBuilder();
-                log.info("Reading response...");
-                while ((inputLine = in.readLine()) != null) {
-                    response.append(inputLine);
-                }
-                in.close();
-                log.info("Done.");
-                conn.disconnect();
-                log.info("URL Connection closed.");
-                long endTime = System.currentTimeMillis();
-                log.info("Round trip response time = " + (endTime - startTime) + " ms");
-                log.info("API Response Data: " + response);
-
-                // Deserialize response data
-                JsonArray jsonArray = new Gson().fromJson(response.toString(), JsonArray.class);
-                Iterator<JsonElement> elementIterator = jsonArray.iterator();
-                JsonObject element;
+            // read the list from the shared reference data store
+            JsonArray elements = ReferenceDataStore.list(endPoint).getAsJsonArray();
 
-                // Read each unique identifier value
-                while (elementIterator.hasNext()) {
-                    element = elementIterator.next().getAsJsonObject();
-                    // read identifier as integer typed literal
-                    Literal idVal = outputModel.createTypedLiteral(element.get("Id").getAsInt());
-                    // populate the output model with instances and literal values
-                    Resource dataQualityResource = outputModel.createResource();
-                    Resource dataQualityIdResource = outputModel.createResource();
-                    dataQualityIdResource.addProperty(Vocab.type, Vocab.DataQualityId);
-                    dataQualityIdResource.addLiteral(Vocab.has_value, idVal);
-                    dataQualityResource.addProperty(Vocab.has_dataQualityId, dataQualityIdResource);
-                    dataQualityResource.addProperty(Vocab.type, output);
-                }
-                log.info("allDataQualities service completed.");
-            } else if (status > 299){
-                log.info("Error executing the GET method at " + endPoint);
+            // populate the output model with an instance per identifier
+            EmissionPlan.TripleSink sink = EmissionPlan.sink(outputModel);
+            for (JsonElement listElement : elements) {
+                EMISSION.emitInstance(output.asNode(), listElement.getAsJsonObject(), sink);
             }
+            long endTime = System.currentTimeMillis();
+            log.info("Round trip response time = " + (endTime - startTime) + " ms");
+            log.info("allDataQualities service completed.");
         } catch (Exception e) {
             log.info(e);
+            Metrics.failed();
         }
 
 
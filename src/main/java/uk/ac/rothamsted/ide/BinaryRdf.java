@@ -0,0 +1,247 @@
+package uk.ac.rothamsted.ide;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.rdf.model.Model;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of a stream of triples, served as application/x-nwfp-binary-rdf.
+ * <p>
+ * A stream starts with the bytes "NRDF" and a version byte, followed by the triples as subject, predicate and
+ * object terms until it ends. A term is an unsigned LEB128 varint code, followed by its parts for the codes
+ * that define a new term:
+ * <ul>
+ * <li>0: URI, then the URI as a string</li>
+ * <li>1: blank node, then its label as a string</li>
+ * <li>2: plain literal, then its lexical form as a string</li>
+ * <li>3: literal with a language, then the lexical form and the language as strings</li>
+ * <li>4: typed literal, then the lexical form as a string and the datatype URI as a term</li>
+ * <li>5 and above: the term held in slot code - 5 of the dictionary</li>
+ * </ul>
+ * A string is its length in UTF-8 bytes as a varint followed by these bytes. Every term defined in the stream
+ * takes the next slot of a dictionary of {@value #DICTIONARY_SIZE} slots, wrapping around to overwrite the
+ * oldest, so repeated properties, classes, datatypes and values cost a byte or two while memory stays bounded
+ * at both ends.
+ */
+public final class BinaryRdf {
+
+    public static final String CONTENT_TYPE = "application/x-nwfp-binary-rdf";
+
+    static final int DICTIONARY_SIZE = 4096;
+
+    private static final byte[] MAGIC = {'N', 'R', 'D', 'F'};
+    private static final int VERSION = 1;
+
+    private static final int URI = 0;
+    private static final int BLANK = 1;
+    private static final int PLAIN_LITERAL = 2;
+    private static final int LANGUAGE_LITERAL = 3;
+    private static final int TYPED_LITERAL = 4;
+    private static final int REFERENCE = 5;
+
+    private BinaryRdf() {
+    }
+
+    /**
+     * Adds every triple of the stream to the model.
+     */
+    public static void read(InputStream in, Model model) throws IOException {
+        Graph graph = model.getGraph();
+        Decoder decoder = new Decoder(in);
+        for (Triple triple = decoder.next(); triple != null; triple = decoder.next()) {
+            graph.add(triple);
+        }
+    }
+
+    /**
+     * Writes triples to a stream; the caller buffers and closes the stream.
+     */
+    public static final class Encoder {
+        private final OutputStream out;
+        private final Map<Node, Integer> slots = new HashMap<>();
+        private final Node[] dictionary = new Node[DICTIONARY_SIZE];
+        private int nextSlot;
+
+        public Encoder(OutputStream out) throws IOException {
+            this.out = out;
+            out.write(MAGIC);
+            out.write(VERSION);
+        }
+
+        public void write(Triple triple) throws IOException {
+            write(triple.getSubject());
+            write(triple.getPredicate());
+            write(triple.getObject());
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        private void write(Node node) throws IOException {
+            Integer slot = slots.get(node);
+            if (slot != null) {
+                writeVarint(REFERENCE + slot);
+                return;
+            }
+            if (node.isURI()) {
+                writeVarint(URI);
+                writeString(node.getURI());
+            } else if (node.isBlank()) {
+                writeVarint(BLANK);
+                writeString(node.getBlankNodeLabel());
+            } else if (node.isLiteral()) {
+                String language = node.getLiteralLanguage();
+                String datatype = node.getLiteralDatatypeURI();
+                if (language != null && !language.isEmpty()) {
+                    writeVarint(LANGUAGE_LITERAL);
+                    writeString(node.getLiteralLexicalForm());
+                    writeString(language);
+                } else if (datatype != null) {
+                    writeVarint(TYPED_LITERAL);
+                    writeString(node.getLiteralLexicalForm());
+                    write(Node.createURI(datatype));
+                } else {
+                    writeVarint(PLAIN_LITERAL);
+                    writeString(node.getLiteralLexicalForm());
+                }
+            } else {
+                throw new IOException("Cannot encode " + node);
+            }
+            Node evicted = dictionary[nextSlot];
+            if (evicted != null) {
+                slots.remove(evicted);
+            }
+            dictionary[nextSlot] = node;
+            slots.put(node, nextSlot);
+            nextSlot = (nextSlot + 1) % DICTIONARY_SIZE;
+        }
+
+        private void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            out.write(bytes);
+        }
+
+        private void writeVarint(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    /**
+     * Reads the triples written by an {@link Encoder}.
+     */
+    public static final class Decoder {
+        private final InputStream in;
+        private final Node[] dictionary = new Node[DICTIONARY_SIZE];
+        private int nextSlot;
+
+        public Decoder(InputStream in) throws IOException {
+            this.in = in;
+            for (byte expected : MAGIC) {
+                if (readByte() != expected) {
+                    throw new IOException("Not a binary RDF stream");
+                }
+            }
+            int version = readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary RDF version " + version);
+            }
+        }
+
+        /**
+         * The next triple, or null at the end of the stream.
+         */
+        public Triple next() throws IOException {
+            int first = in.read();
+            if (first < 0) {
+                return null;
+            }
+            Node subject = readTerm(readVarint(first));
+            Node predicate = readTerm(readVarint(readByte()));
+            Node object = readTerm(readVarint(readByte()));
+            return Triple.create(subject, predicate, object);
+        }
+
+        private Node readTerm(int code) throws IOException {
+            if (code >= REFERENCE) {
+                Node node = code - REFERENCE < DICTIONARY_SIZE ? dictionary[code - REFERENCE] : null;
+                if (node == null) {
+                    throw new IOException("Reference to the empty dictionary slot " + (code - REFERENCE));
+                }
+                return node;
+            }
+            Node node;
+            switch (code) {
+                case URI:
+                    node = Node.createURI(readString());
+                    break;
+                case BLANK:
+                    node = Node.createAnon(new AnonId(readString()));
+                    break;
+                case PLAIN_LITERAL:
+                    node = Node.createLiteral(readString());
+                    break;
+                case LANGUAGE_LITERAL:
+                    node = Node.createLiteral(readString(), readString(), false);
+                    break;
+                default:
+                    String lexicalForm = readString();
+                    String datatype = readTerm(readVarint(readByte())).getURI();
+                    node = Node.createLiteral(lexicalForm, null, TypeMapper.getInstance().getSafeTypeByName(datatype));
+            }
+            dictionary[nextSlot] = node;
+            nextSlot = (nextSlot + 1) % DICTIONARY_SIZE;
+            return node;
+        }
+
+        private String readString() throws IOException {
+            int length = readVarint(readByte());
+            byte[] bytes = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int count = in.read(bytes, read, length - read);
+                if (count < 0) {
+                    throw new EOFException("Truncated binary RDF stream");
+                }
+                read += count;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private int readVarint(int first) throws IOException {
+            int value = first & 0x7F;
+            int shift = 7;
+            int b = first;
+            while ((b & 0x80) != 0) {
+                b = readByte();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            }
+            return value;
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated binary RDF stream");
+            }
+            return b;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package uk.ac.rothamsted.ide;
+
+import com.hp.hpl.jena.graph.Triple;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the triples of a streamed response in the {@link BinaryRdf} encoding.
+ */
+final class BinaryRdfResponseGraph extends ResponseGraph {
+
+    private BinaryRdf.Encoder encoder;
+
+    BinaryRdfResponseGraph(HttpServletResponse response) {
+        super(response, BinaryRdf.CONTENT_TYPE);
+    }
+
+    @Override
+    protected void open(OutputStream out) throws IOException {
+        encoder = new BinaryRdf.Encoder(new BufferedOutputStream(out));
+    }
+
+    @Override
+    protected void writeTriple(Triple triple) throws IOException {
+        encoder.write(triple);
+    }
+
+    @Override
+    protected void flush() throws IOException {
+        encoder.flush();
+    }
+}
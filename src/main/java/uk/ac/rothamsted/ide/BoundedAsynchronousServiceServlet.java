@@ -0,0 +1,121 @@
+package uk.ac.rothamsted.ide;
+
+import org.apache.log4j.Logger;
+import org.sadiframework.service.ServiceCall;
+import org.sadiframework.service.simple.SimpleAsynchronousServiceServlet;
+import org.sadiframework.tasks.Task;
+import org.sadiframework.tasks.TaskManager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous SADI service that runs its work on a bounded pool instead of a thread per request.
+ * <p>
+ * A POST returns at once with a poll URL for each input, following the SADI asynchronous protocol; the
+ * inputs are then processed on a pool of nwfp.async.threads threads (default 4) with at most
+ * nwfp.async.queueSize requests waiting (default 64). Requests beyond that fail straight away. Results are
+ * kept until they are polled, or for nwfp.async.resultTtl seconds after they are ready (default 3600).
+ * The time taken to process a request, its failures and output triples are recorded in {@link Metrics}, and the
+ * phases of the processing in a {@link Trace}.
+ */
+public abstract class BoundedAsynchronousServiceServlet extends SimpleAsynchronousServiceServlet {
+
+    private static final Logger log = Logger.getLogger(BoundedAsynchronousServiceServlet.class);
+
+    private static final int THREADS = Integer.getInteger("nwfp.async.threads", 4);
+    private static final int QUEUE_SIZE = Integer.getInteger("nwfp.async.queueSize", 64);
+    private static final long RESULT_TTL = Long.getLong("nwfp.async.resultTtl", 3600L) * 1000;
+
+    private static final ThreadPoolExecutor workers;
+    private static final ScheduledExecutorService sweeper;
+    // tasks whose results have not been collected yet
+    private static final Map<String, Task> tasks = new ConcurrentHashMap<>();
+
+    static {
+        AtomicInteger threadNumber = new AtomicInteger();
+        workers = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(QUEUE_SIZE), runnable -> {
+            Thread thread = new Thread(runnable, "nwfp-async-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        workers.allowCoreThreadTimeOut(true);
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "nwfp-async-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(BoundedAsynchronousServiceServlet::expireResults, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Stops the pool and the expiry of results; requests still running are interrupted. Called when the
+     * application stops.
+     */
+    public static void shutdown() {
+        sweeper.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    @Override
+    protected InputProcessingTask getInputProcessingTask(ServiceCall call) {
+        Metrics.Timer metrics = Metrics.service(getServletName());
+        return new InputProcessingTask(call) {
+            @Override
+            public void run() {
+                // called on the task manager's own thread, which only hands the work over to the pool
+                tasks.put(getId(), this);
+                try {
+                    workers.execute(() -> {
+                        Metrics.Request request = Metrics.begin(getServletName());
+                        Trace trace = Trace.begin(getServletName());
+                        long startTime = System.nanoTime();
+                        super.run();
+                        if (getError() != null) {
+                            request.failed();
+                            if (trace != null) {
+                                trace.failed();
+                            }
+                        }
+                        Metrics.end(request, System.nanoTime() - startTime);
+                        Trace.end(trace);
+                    });
+                } catch (RejectedExecutionException e) {
+                    log.info("Rejected asynchronous request " + getId() + ": " + workers.getQueue().size() + " requests are waiting");
+                    metrics.errors.incrementAndGet();
+                    fatalError(new IllegalStateException("Too many requests are waiting, try again later"));
+                }
+            }
+        };
+    }
+
+    @Override
+    protected void processInputBatch(ServiceCall call) throws Exception {
+        super.processInputBatch(call);
+        // counted here, since the output model is disposed of once a poll has collected it
+        Metrics.service(getServletName()).triples.addAndGet(call.getOutputModel().size());
+    }
+
+    private static void expireResults() {
+        long now = System.currentTimeMillis();
+        TaskManager taskManager = TaskManager.getInstance();
+        for (Map.Entry<String, Task> entry : tasks.entrySet()) {
+            Task task = entry.getValue();
+            if (taskManager.getTask(entry.getKey()) != task) {
+                // collected by a poll
+                tasks.remove(entry.getKey());
+            } else if (task.isFinished() && now - task.getCompletionTime().getTime() > RESULT_TTL) {
+                tasks.remove(entry.getKey());
+                taskManager.disposeTask(entry.getKey());
+                log.info("Dropped the uncollected result of asynchronous request " + entry.getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package uk.ac.rothamsted.ide;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Circuit breaker of one upstream endpoint, used by {@link NwfpClient}.
+ * <p>
+ * The outcome of the last nwfp.circuit.window calls (default 20) is kept. Once at least nwfp.circuit.minCalls
+ * of them (default 10) were made and nwfp.circuit.failureRate percent (default 50) failed, the circuit opens:
+ * calls fail at once for nwfp.circuit.openMillis milliseconds (default 30000). After that a single probe call
+ * is let through; the circuit closes if it succeeds and opens again if it fails.
+ */
+final class CircuitBreaker {
+
+    private static final Logger log = Logger.getLogger(CircuitBreaker.class);
+
+    private static final int WINDOW = Math.max(1, Integer.getInteger("nwfp.circuit.window", 20));
+    private static final int MIN_CALLS = Integer.getInteger("nwfp.circuit.minCalls", 10);
+    private static final int FAILURE_RATE = Integer.getInteger("nwfp.circuit.failureRate", 50);
+    private static final long OPEN_MILLIS = Long.getLong("nwfp.circuit.openMillis", 30000L);
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String endPoint;
+    private final long openMillis;
+    // true for a failed call, oldest overwritten first
+    private final boolean[] outcomes = new boolean[WINDOW];
+    private int next;
+    private int calls;
+    private int failures;
+    private State state = State.CLOSED;
+    private long openedAt;
+
+    CircuitBreaker(String endPoint) {
+        this(endPoint, OPEN_MILLIS);
+    }
+
+    CircuitBreaker(String endPoint, long openMillis) {
+        this.endPoint = endPoint;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Whether a call may be made now. In the half-open state only the probe is allowed; a probe that has not
+     * reported back within the open time is replaced by a new one.
+     */
+    synchronized boolean allowRequest() {
+        long now = System.currentTimeMillis();
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - openedAt < openMillis) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                openedAt = now;
+                log.info("Circuit of " + endPoint + " is half open, probing");
+                return true;
+            default:
+                if (now - openedAt < openMillis) {
+                    return false;
+                }
+                openedAt = now;
+                return true;
+        }
+    }
+
+    synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            state = State.CLOSED;
+            next = 0;
+            calls = 0;
+            failures = 0;
+            log.info("Circuit of " + endPoint + " is closed again");
+            return;
+        }
+        record(false);
+    }
+
+    synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+            return;
+        }
+        record(true);
+        if (state == State.CLOSED && calls >= MIN_CALLS && failures * 100 >= FAILURE_RATE * calls) {
+            open();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    private void record(boolean failure) {
+        if (calls == WINDOW) {
+            if (outcomes[next]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        outcomes[next] = failure;
+        if (failure) {
+            failures++;
+        }
+        next = (next + 1) % WINDOW;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        log.info("Circuit of " + endPoint + " is open for " + openMillis + " ms after " + failures + " failures in " + calls + " calls");
+    }
+}
@@ -0,0 +1,168 @@
+package uk.ac.rothamsted.ide;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * Fetches the measurements of a long date range from the NWFP API as several shorter ranges.
+ * <p>
+ * A range longer than nwfp.measurements.shardDays (default 31, 0 disables sharding) is split into consecutive
+ * ranges of that many days, which are fetched on the shared upstream pool with at most
+ * nwfp.measurements.maxParallelShards (default 4) requests in flight. Measurements are handed to the caller
+ * range by range in date order, on the calling thread, whichever request finishes first. Identical range
+ * requests in flight at the same time share one download, see {@link SingleFlight}.
+ */
+public final class DateRangeShards {
+
+    private static final Logger log = Logger.getLogger(DateRangeShards.class);
+
+    private static final int SHARD_DAYS = Integer.getInteger("nwfp.measurements.shardDays", 31);
+    private static final int MAX_PARALLEL_SHARDS = Integer.getInteger("nwfp.measurements.maxParallelShards", 4);
+
+    private DateRangeShards() {
+    }
+
+    /**
+     * Posts the request built by requestBody from a start and end date to the endpoint, once per range, and
+     * passes every measurement of the responses to the consumer in date order.
+     */
+    public static void fetch(String endPoint, String startDate, String endDate,
+                             BiFunction<String, String, String> requestBody, Consumer<JsonObject> measurements) throws Exception {
+        List<Shard> shards = split(startDate, endDate);
+        if (shards.size() == 1) {
+            // a short range is streamed straight from the response
+            Shard shard = shards.get(0);
+            fetchShard(endPoint, shard, requestBody.apply(shard.startDate, shard.endDate), measurements);
+            return;
+        }
+        log.info("Fetching " + startDate + " to " + endDate + " from " + endPoint + " as " + shards.size()
+                + " ranges of " + SHARD_DAYS + " days, " + MAX_PARALLEL_SHARDS + " at a time");
+
+        Deque<CompletableFuture<List<JsonObject>>> pending = new ArrayDeque<>();
+        Iterator<Shard> nextShard = shards.iterator();
+        try {
+            while (nextShard.hasNext() || !pending.isEmpty()) {
+                while (nextShard.hasNext() && pending.size() < MAX_PARALLEL_SHARDS) {
+                    Shard shard = nextShard.next();
+                    // concurrent requests for the same range share one download
+                    pending.add(NwfpClient.sendAsync(endPoint, requestBody.apply(shard.startDate, shard.endDate), 0, shard.resultKind(), upstream -> {
+                        List<JsonObject> shardMeasurements = new ArrayList<>();
+                        readShard(endPoint, shard, upstream, shardMeasurements::add);
+                        return shardMeasurements;
+                    }));
+                }
+                // wait for the earliest range so that the measurements stay in date order
+                for (JsonObject measurement : pending.peek().get()) {
+                    measurements.accept(measurement);
+                }
+                pending.poll();
+            }
+        } finally {
+            for (CompletableFuture<List<JsonObject>> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Splits the range into shards of SHARD_DAYS days. Consecutive shards share their boundary date; the earlier
+     * shard drops the measurements taken on that date, so none is listed twice whether or not the API treats the
+     * end date as inclusive. Dates that are not yyyy-MM-dd are sent as one range.
+     */
+    static List<Shard> split(String startDate, String endDate) {
+        List<Shard> shards = new ArrayList<>();
+        if (SHARD_DAYS > 0) {
+            try {
+                LocalDate end = LocalDate.parse(endDate);
+                LocalDate shardStart = LocalDate.parse(startDate);
+                String shardStartValue = startDate;
+                while (shardStart.plusDays(SHARD_DAYS).isBefore(end)) {
+                    LocalDate shardEnd = shardStart.plusDays(SHARD_DAYS);
+                    shards.add(new Shard(shardStartValue, shardEnd.toString(), shardEnd.toString()));
+                    shardStart = shardEnd;
+                    shardStartValue = shardEnd.toString();
+                }
+                shards.add(new Shard(shardStartValue, endDate, null));
+                return shards;
+            } catch (DateTimeParseException e) {
+                log.info("Not splitting the range " + startDate + " to " + endDate + ": " + e.getMessage());
+                shards.clear();
+            }
+        }
+        shards.add(new Shard(startDate, endDate, null));
+        return shards;
+    }
+
+    private static void fetchShard(String endPoint, Shard shard, String body, Consumer<JsonObject> measurements) throws IOException {
+        log.info("Data to send via POST method: " + NwfpClient.abbreviate(body));
+        try (NwfpClient.Response upstream = NwfpClient.post(endPoint, body, 0)) {
+            readShard(endPoint, shard, upstream, measurements);
+        }
+    }
+
+    private static void readShard(String endPoint, Shard shard, NwfpClient.Response upstream,
+                                  Consumer<JsonObject> measurements) throws IOException {
+        int status = upstream.getStatus();
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Error executing the POST method at " + endPoint + ". Http Status Code: " + status);
+        }
+        // Deserialize response data one element at a time while it is being read
+        Iterator<JsonObject> elementIterator = JsonStreams.arrayElements(upstream.getReader());
+        while (elementIterator.hasNext()) {
+            JsonObject element = elementIterator.next();
+            if (shard.keeps(element)) {
+                measurements.accept(element);
+            }
+        }
+    }
+
+    static final class Shard {
+        final String startDate;
+        final String endDate;
+        // measurements taken on or after this date belong to the next shard; null for the last shard
+        final String nextStartDate;
+
+        Shard(String startDate, String endDate, String nextStartDate) {
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.nextStartDate = nextStartDate;
+        }
+
+        /**
+         * The kind of result read from the shard's response, see {@link SingleFlight}: the same range keeps
+         * different measurements as the last shard of one query and as an earlier shard of another.
+         */
+        String resultKind() {
+            return nextStartDate == null ? "measurements" : "measurements before " + nextStartDate;
+        }
+
+        boolean keeps(JsonObject measurement) {
+            if (nextStartDate == null) {
+                return true;
+            }
+            JsonElement dateTime = measurement.get("DateTime");
+            if (dateTime == null || dateTime.isJsonNull()) {
+                return true;
+            }
+            String value = dateTime.getAsString();
+            if (value.length() < 10 || value.charAt(4) != '-' || value.charAt(7) != '-') {
+                return true;
+            }
+            return value.substring(0, 10).compareTo(nextStartDate) < 0;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package uk.ac.rothamsted.ide;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.hp.hpl.jena.datatypes.RDFDatatype;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Precompiled output of a service, built once from its Vocab.
+ * <p>
+ * The services describe every output field the same way: a blank node typed with the field's class and
+ * holding the value as an xsd:string in has_value, linked from the output by the field's property. A plan
+ * holds the nodes of these properties and classes, made up front, and writes the three triples of each field
+ * straight to a {@link TripleSink}, without the Resource, Literal and Statement objects the Model API creates
+ * for every triple.
+ * <p>
+ * Fields added with a datatype, such as the xsd:int ids of the All* listings, always have it. Listings emit
+ * each record as an instance: a new blank node typed with the output class, carrying the fields.
+ * <p>
+ * A compact plan also gives the values of typed fields their datatype, where the value is a valid lexical
+ * form of it, and describes each distinct value of a shared field once per output: later rows with the same
+ * value add no triples.
+ */
+final class EmissionPlan {
+
+    /**
+     * Receiver of the triples of a plan, e.g. the graph of the output model.
+     */
+    interface TripleSink {
+        void add(Node subject, Node predicate, Node object);
+    }
+
+    private final Node type;
+    private final Node hasValue;
+    private final String[] keys;
+    private final Node[] properties;
+    private final Node[] classes;
+    private final RDFDatatype[] datatypes;
+    private final boolean[] shared;
+    private final boolean[] alwaysTyped;
+    private final boolean compact;
+
+    private EmissionPlan(Builder builder, boolean compact) {
+        this.type = builder.type;
+        this.hasValue = builder.hasValue;
+        this.keys = builder.keys.toArray(new String[0]);
+        this.properties = builder.properties.toArray(new Node[0]);
+        this.classes = builder.classes.toArray(new Node[0]);
+        this.datatypes = builder.datatypes.toArray(new RDFDatatype[0]);
+        this.shared = new boolean[builder.shared.size()];
+        this.alwaysTyped = new boolean[builder.alwaysTyped.size()];
+        for (int i = 0; i < shared.length; i++) {
+            shared[i] = builder.shared.get(i);
+            alwaysTyped[i] = builder.alwaysTyped.get(i);
+        }
+        this.compact = compact;
+    }
+
+    static Builder builder(Property type, Property hasValue) {
+        return new Builder(type, hasValue);
+    }
+
+    /**
+     * Sink adding the triples to the graph underneath the model.
+     */
+    static TripleSink sink(Model model) {
+        Graph graph = model.getGraph();
+        return (subject, predicate, object) -> graph.add(Triple.create(subject, predicate, object));
+    }
+
+    /**
+     * Emitter of the rows of one output; it remembers the shared values it described.
+     */
+    Emitter emitter(Resource output) {
+        return new Emitter(output.asNode(), sink(output.getModel()));
+    }
+
+    /**
+     * Emits every field of the plan with the member of the element named by its key; missing and null
+     * members are emitted as empty strings.
+     */
+    void emit(Node subject, JsonObject element, TripleSink sink) {
+        for (int i = 0; i < keys.length; i++) {
+            JsonElement value = element.get(keys[i]);
+            emit(subject, i, value == null || value.isJsonNull() ? "" : value.getAsString(), sink);
+        }
+    }
+
+    /**
+     * Emits the element as a new instance of the class, e.g. one record of a listing.
+     */
+    void emitInstance(Node instanceClass, JsonObject element, TripleSink sink) {
+        Node subject = Node.createAnon();
+        emit(subject, element, sink);
+        sink.add(subject, type, instanceClass);
+    }
+
+    /**
+     * Emits a new instance of the class with the values for the fields of the plan in the order they were added.
+     */
+    void emitInstance(Node instanceClass, TripleSink sink, String... values) {
+        Node subject = Node.createAnon();
+        for (int i = 0; i < values.length; i++) {
+            emit(subject, i, values[i], sink);
+        }
+        sink.add(subject, type, instanceClass);
+    }
+
+    private void emit(Node subject, int field, String value, TripleSink sink) {
+        Node valueNode = Node.createAnon();
+        sink.add(valueNode, type, classes[field]);
+        sink.add(valueNode, hasValue, literal(field, value));
+        sink.add(subject, properties[field], valueNode);
+    }
+
+    private Node literal(int field, String value) {
+        RDFDatatype datatype = datatypes[field];
+        if ((compact || alwaysTyped[field]) && datatype != null) {
+            // the API separates date and time by a space in some layouts
+            String lexicalForm = datatype == XSDDatatype.XSDdateTime ? value.replace(' ', 'T') : value;
+            if (datatype.isValid(lexicalForm)) {
+                return Node.createLiteral(lexicalForm, null, datatype);
+            }
+        }
+        return Node.createLiteral(value, null, XSDDatatype.XSDstring);
+    }
+
+    final class Emitter {
+        private final Node subject;
+        private final TripleSink sink;
+        // per shared field, the values already emitted
+        private final List<Set<String>> sharedValues = new ArrayList<>();
+
+        private Emitter(Node subject, TripleSink sink) {
+            this.subject = subject;
+            this.sink = sink;
+            for (int i = 0; i < properties.length; i++) {
+                sharedValues.add(compact && shared[i] ? new HashSet<>() : null);
+            }
+        }
+
+        /**
+         * Emits the values for the fields of the plan in the order they were added.
+         */
+        void emit(String... values) {
+            for (int i = 0; i < values.length; i++) {
+                Set<String> emitted = sharedValues.get(i);
+                if (emitted == null || emitted.add(values[i])) {
+                    EmissionPlan.this.emit(subject, i, values[i], sink);
+                }
+            }
+        }
+    }
+
+    static final class Builder {
+        private final Node type;
+        private final Node hasValue;
+        private final List<String> keys = new ArrayList<>();
+        private final List<Node> properties = new ArrayList<>();
+        private final List<Node> classes = new ArrayList<>();
+        private final List<RDFDatatype> datatypes = new ArrayList<>();
+        private final List<Boolean> shared = new ArrayList<>();
+        private final List<Boolean> alwaysTyped = new ArrayList<>();
+
+        private Builder(Property type, Property hasValue) {
+            this.type = type.asNode();
+            this.hasValue = hasValue.asNode();
+        }
+
+        /**
+         * Adds a field whose value is passed in by the caller.
+         */
+        Builder field(Property property, Resource valueClass) {
+            return field(null, property, valueClass);
+        }
+
+        /**
+         * Adds a field whose value is read from the member of a JSON record with the given key.
+         */
+        Builder field(String key, Property property, Resource valueClass) {
+            return add(key, property, valueClass, null, false, false);
+        }
+
+        /**
+         * Adds a field whose value is passed in by the caller and always has the datatype.
+         */
+        Builder field(Property property, Resource valueClass, RDFDatatype datatype) {
+            return field(null, property, valueClass, datatype);
+        }
+
+        /**
+         * Adds a field read from a JSON record whose values always have the datatype, where they are valid
+         * lexical forms of it.
+         */
+        Builder field(String key, Property property, Resource valueClass, RDFDatatype datatype) {
+            return add(key, property, valueClass, datatype, false, true);
+        }
+
+        /**
+         * Adds a field whose values have the datatype in a compact plan.
+         */
+        Builder typedField(Property property, Resource valueClass, RDFDatatype datatype) {
+            return add(null, property, valueClass, datatype, false, false);
+        }
+
+        /**
+         * Adds a field whose value nodes are shared by the rows of an output in a compact plan.
+         */
+        Builder sharedField(Property property, Resource valueClass) {
+            return add(null, property, valueClass, null, true, false);
+        }
+
+        EmissionPlan build() {
+            return build(false);
+        }
+
+        EmissionPlan build(boolean compact) {
+            return new EmissionPlan(this, compact);
+        }
+
+        private Builder add(String key, Property property, Resource valueClass, RDFDatatype datatype, boolean isShared,
+                            boolean isAlwaysTyped) {
+            keys.add(key);
+            properties.add(property.asNode());
+            classes.add(valueClass.asNode());
+            datatypes.add(datatype);
+            shared.add(isShared);
+            alwaysTyped.add(isAlwaysTyped);
+            return this;
+        }
+    }
+}
@@ -1,35 +1,44 @@
 package uk.ac.rothamsted.ide;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.hp.hpl.jena.rdf.model.*;
 import org.apache.log4j.Logger;
-import org.apache.log4j.PropertyConfigurator;
 import org.sadiframework.service.annotations.*;
-import org.sadiframework.service.simple.SimpleSynchronousServiceServlet;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Iterator;
-import java.nio.charset.StandardCharsets;
 
 @Name("getAnimalBasicDataInfo")
 @Description("NWFP rest API: Get information about the basic animal data based on the identifier")
 @ContactEmail("sadnanalmanir@gmail.com")
 @InputClass("http://localhost:8080/ontology/service-ontology/getAnimalBasicDataInfo.owl#Input")
 @OutputClass("http://localhost:8080/ontology/service-ontology/getAnimalBasicDataInfo.owl#Output")
-public class GetAnimalBasicDataInfo extends SimpleSynchronousServiceServlet {
+public class GetAnimalBasicDataInfo extends ParallelSynchronousServiceServlet {
 
     private static final Logger log = Logger.getLogger(GetAnimalBasicDataInfo.class);
 
+    private static final EmissionPlan EMISSION = EmissionPlan.builder(Vocab.type, Vocab.has_value)
+            .field("OfficialTag", Vocab.has_officialTag, Vocab.OfficialTag)
+            .field("ManagementTag", Vocab.has_managementTag, Vocab.ManagementTag)
+            .field("Breed", Vocab.has_breed, Vocab.Breed)
+            .field("DateOfBirth", Vocab.has_dateOfBirth, Vocab.DateOfBirth)
+            .field("GrazingYear", Vocab.has_grazingYear, Vocab.GrazingYear)
+            .field("EndGrazingYear", Vocab.has_endGrazingYear, Vocab.EndGrazingYear)
+            .field("Gender", Vocab.has_gender, Vocab.Gender)
+            .field("farmletName", Vocab.has_farmletName, Vocab.FarmletName)
+            .field("SireId", Vocab.has_sireId, Vocab.SireId)
+            .field("BirthDamId", Vocab.has_birthDamId, Vocab.BirthDamId)
+            .field("RearingDamId", Vocab.has_rearingDamId, Vocab.RearingDamId)
+            .field("BirthLitterSize", Vocab.has_birthLitterSize, Vocab.BirthLitterSize)
+            .field("RearingLitterSize", Vocab.has_rearingLitterSize, Vocab.RearingLitterSize)
+            .field("AnimalId", Vocab.has_animalId, Vocab.AnimalId)
+            .field("Comments", Vocab.has_comment, Vocab.Comment)
+            .field("RangeStartDateTime", Vocab.has_rangeStartDateTime, Vocab.RangeStartDateTime)
+            .field("RangeEndDateTime", Vocab.has_rangeEndDateTime, Vocab.RangeEndDateTime)
+            .field("AnimalCategoryName", Vocab.has_animalCategoryName, Vocab.AnimalCategoryName)
+            .field("BreedingAnimal", Vocab.has_breedingAnimal, Vocab.BreedingAnimal)
+            .build();
+
     @Override
     public void processInput(Resource input, Resource output) {
 
-        PropertyConfigurator.configure(log.getClass().getClassLoader().getResource("log4j.properties"));
         log.info("*** SADI Service ***");
         log.info("Invoking SADI service: getAnimalBasicDataInfo");
 
@@ -40,175 +49,19 @@ public class GetAnimalBasicDataInfo extends SimpleSynchronousServiceServlet {
         Model outputModel = output.getModel();
 
         try {
-            // initiate GET request to the endpoint
+            // look up the record in the shared reference data store
             String endPoint = "https://nwfp.rothamsted.ac.uk:8443/getAnimalBasicData";
-            URL url = new URL(endPoint);
-            long startTime = System.currentTimeMillis();
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            // set connection timeout to 5 seconds
-            conn.setConnectTimeout(5000);
-            // set content reading timeout to 20 seconds
-            conn.setReadTimeout(20000);
-            conn.addRequestProperty("Accept-Language", "en-US,en;q=0.8");
-            conn.addRequestProperty("User-Agent", "Mozilla");
-            log.info("Request URL: " + url);
-
-            // gather response from the request
-            int status = conn.getResponseCode();
-            if (status == HttpURLConnection.HTTP_OK){
-                log.info("'GET' Request is Successful. Http Status Code: " + status);
-                BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8));
-                String inputLine;
-                StringBuilder response = new StringBuilder();
-                log.info("Reading response...");
-                while ((inputLine = in.readLine()) != null) {
-                    response.append(inputLine);
-                }
-                in.close();
-                log.info("Done.");
-                conn.disconnect();
-                log.info("URL Connection closed.");
-
-                long endTime = System.currentTimeMillis();
-                log.info("Round trip response time = " + (endTime - startTime) + " ms");
-                log.info("API Response Data: " + response);
-
-                // Deserialize response data
-                JsonArray jsonArray = new Gson().fromJson(response.toString(), JsonArray.class);
-                Iterator<JsonElement> elementIterator = jsonArray.iterator();
-                JsonObject element;
-
-                // Read each unique identifier value
-                while (elementIterator.hasNext()) {
-                    element = elementIterator.next().getAsJsonObject();
-                    // Read current unique identifier value
-                    Literal idVal = outputModel.createTypedLiteral(element.get("Id").getAsInt());
-                    // check if the current id matches the extracted id
-                    if (idVal.getInt() == animalBasicDataId) {
-                        String officialTagVal = getNullAsEmptyString(element.get("OfficialTag"));
-                        String managementTagVal = getNullAsEmptyString(element.get("ManagementTag"));
-                        String breedVal = getNullAsEmptyString(element.get("Breed"));
-                        String dateOfBirthVal = getNullAsEmptyString(element.get("DateOfBirth"));
-                        String grazingYearVal = getNullAsEmptyString(element.get("GrazingYear"));
-                        String endGrazingYearVal = getNullAsEmptyString(element.get("EndGrazingYear"));
-                        String genderVal = getNullAsEmptyString(element.get("Gender"));
-                        String farmletNameVal = getNullAsEmptyString(element.get("farmletName"));
-                        String sireIdVal = getNullAsEmptyString(element.get("SireId"));
-                        String birthDamIdVal = getNullAsEmptyString(element.get("BirthDamId"));
-                        String rearingDamIdVal = getNullAsEmptyString(element.get("RearingDamId"));
-                        String birthLitterSizeVal = getNullAsEmptyString(element.get("BirthLitterSize"));
-                        String rearingLitterSizeVal = getNullAsEmptyString(element.get("RearingLitterSize"));
-                        String animalIdVal = getNullAsEmptyString(element.get("AnimalId"));
-                        String commentVal = getNullAsEmptyString(element.get("Comments"));
-                        String rangeStartDateTimeVal = getNullAsEmptyString(element.get("RangeStartDateTime"));
-                        String rangeEndDateTimeVal = getNullAsEmptyString(element.get("RangeEndDateTime"));
-                        String animalCategoryNameVal = getNullAsEmptyString(element.get("AnimalCategoryName"));
-                        String breedingAnimalVal = getNullAsEmptyString(element.get("BreedingAnimal"));
-
-                        // populate the output model with instances and literal values
-                        Resource OfficialTagResource = outputModel.createResource();
-                        OfficialTagResource.addProperty(Vocab.type, Vocab.OfficialTag);
-                        OfficialTagResource.addLiteral(Vocab.has_value, officialTagVal);
-                        output.addProperty(Vocab.has_officialTag, OfficialTagResource);
-
-                        Resource ManagementTagResource = outputModel.createResource();
-                        ManagementTagResource.addProperty(Vocab.type, Vocab.ManagementTag);
-                        ManagementTagResource.addLiteral(Vocab.has_value, managementTagVal);
-                        output.addProperty(Vocab.has_managementTag, ManagementTagResource);
-
-                        Resource BreedResource = outputModel.createResource();
-                        BreedResource.addProperty(Vocab.type, Vocab.Breed);
-                        BreedResource.addLiteral(Vocab.has_value, breedVal);
-                        output.addProperty(Vocab.has_breed, BreedResource);
-
-                        Resource DateOfBirthResource = outputModel.createResource();
-                        DateOfBirthResource.addProperty(Vocab.type, Vocab.DateOfBirth);
-                        DateOfBirthResource.addLiteral(Vocab.has_value, dateOfBirthVal);
-                        output.addProperty(Vocab.has_dateOfBirth, DateOfBirthResource);
-
-                        Resource GrazingYearResource = outputModel.createResource();
-                        GrazingYearResource.addProperty(Vocab.type, Vocab.GrazingYear);
-                        GrazingYearResource.addLiteral(Vocab.has_value, grazingYearVal);
-                        output.addProperty(Vocab.has_grazingYear, GrazingYearResource);
-
-                        Resource EndGrazingYearResource = outputModel.createResource();
-                        EndGrazingYearResource.addProperty(Vocab.type, Vocab.EndGrazingYear);
-                        EndGrazingYearResource.addLiteral(Vocab.has_value, endGrazingYearVal);
-                        output.addProperty(Vocab.has_endGrazingYear, EndGrazingYearResource);
-
-                        Resource GenderResource = outputModel.createResource();
-                        GenderResource.addProperty(Vocab.type, Vocab.Gender);
-                        GenderResource.addLiteral(Vocab.has_value, genderVal);
-                        output.addProperty(Vocab.has_gender, GenderResource);
-
-                        Resource FarmletNameResource = outputModel.createResource();
-                        FarmletNameResource.addProperty(Vocab.type, Vocab.FarmletName);
-                        FarmletNameResource.addLiteral(Vocab.has_value, farmletNameVal);
-                        output.addProperty(Vocab.has_farmletName, FarmletNameResource);
-
-                        Resource SireIdResource = outputModel.createResource();
-                        SireIdResource.addProperty(Vocab.type, Vocab.SireId);
-                        SireIdResource.addLiteral(Vocab.has_value, sireIdVal);
-                        output.addProperty(Vocab.has_sireId, SireIdResource);
-
-                        Resource BirthDamIdResource = outputModel.createResource();
-                        BirthDamIdResource.addProperty(Vocab.type, Vocab.BirthDamId);
-                        BirthDamIdResource.addLiteral(Vocab.has_value, birthDamIdVal);
-                        output.addProperty(Vocab.has_birthDamId, BirthDamIdResource);
-
-                        Resource RearingDamIdResource = outputModel.createResource();
-                        RearingDamIdResource.addProperty(Vocab.type, Vocab.RearingDamId);
-                        RearingDamIdResource.addLiteral(Vocab.has_value, rearingDamIdVal);
-                        output.addProperty(Vocab.has_rearingDamId, RearingDamIdResource);
-
-                        Resource BirthLitterSizeResource = outputModel.createResource();
-                        BirthLitterSizeResource.addProperty(Vocab.type, Vocab.BirthLitterSize);
-                        BirthLitterSizeResource.addLiteral(Vocab.has_value, birthLitterSizeVal);
-                        output.addProperty(Vocab.has_birthLitterSize, BirthLitterSizeResource);
-
-                        Resource RearingLitterSizeResource = outputModel.createResource();
-                        RearingLitterSizeResource.addProperty(Vocab.type, Vocab.RearingLitterSize);
-                        RearingLitterSizeResource.addLiteral(Vocab.has_value, rearingLitterSizeVal);
-                        output.addProperty(Vocab.has_rearingLitterSize, RearingLitterSizeResource);
-
-                        Resource AnimalIdResource = outputModel.createResource();
-                        AnimalIdResource.addProperty(Vocab.type, Vocab.AnimalId);
-                        AnimalIdResource.addLiteral(Vocab.has_value, animalIdVal);
-                        output.addProperty(Vocab.has_animalId, AnimalIdResource);
-
-                        Resource CommentResource = outputModel.createResource();
-                        CommentResource.addProperty(Vocab.type, Vocab.Comment);
-                        CommentResource.addLiteral(Vocab.has_value, commentVal);
-                        output.addProperty(Vocab.has_comment, CommentResource);
-
-                        Resource RangeStartDateTimeResource = outputModel.createResource();
-                        RangeStartDateTimeResource.addProperty(Vocab.type, Vocab.RangeStartDateTime);
-                        RangeStartDateTimeResource.addLiteral(Vocab.has_value, rangeStartDateTimeVal);
-                        output.addProperty(Vocab.has_rangeStartDateTime, RangeStartDateTimeResource);
-
-                        Resource RangeEndDateTimeResource = outputModel.createResource();
-                        RangeEndDateTimeResource.addProperty(Vocab.type, Vocab.RangeEndDateTime);
-                        RangeEndDateTimeResource.addLiteral(Vocab.has_value, rangeEndDateTimeVal);
-                        output.addProperty(Vocab.has_rangeEndDateTime, RangeEndDateTimeResource);
-
-                        Resource AnimalCategoryNameResource = outputModel.createResource();
-                        AnimalCategoryNameResource.addProperty(Vocab.type, Vocab.AnimalCategoryName);
-                        AnimalCategoryNameResource.addLiteral(Vocab.has_value, animalCategoryNameVal);
-                        output.addProperty(Vocab.has_animalCategoryName, AnimalCategoryNameResource);
-
-                        Resource BreedingAnimalResource = outputModel.createResource();
-                        BreedingAnimalResource.addProperty(Vocab.type, Vocab.BreedingAnimal);
-                        BreedingAnimalResource.addLiteral(Vocab.has_value, breedingAnimalVal);
-                        output.addProperty(Vocab.has_breedingAnimal, BreedingAnimalResource);
-                    }
-                }
-                log.info("getAnimalBasicDataInfo service completed.");
-            } else if (status > 299){
-                log.info("Error executing the GET method at " + endPoint);
+            JsonObject element = ReferenceDataStore.lookup(endPoint, animalBasicDataId);
+            if (element != null) {
+                // populate the output model with instances and literal values
+                EMISSION.emit(output.asNode(), element, EmissionPlan.sink(outputModel));
+            } else {
+                log.info("No record found with Id " + animalBasicDataId + " at " + endPoint);
             }
+            log.info("getAnimalBasicDataInfo service completed.");
         } catch (Exception e) {
             log.info(e);
+            Metrics.failed();
         }
     }
 
@@ -261,9 +114,5 @@ public class GetAnimalBasicDataInfo extends SimpleSynchronousServiceServlet {
         public static final Resource Input = m_model.createResource("http://localhost:8080/ontology/service-ontology/getAnimalBasicDataInfo.owl#Input");
         public static final Resource Output = m_model.createResource("http://localhost:8080/ontology/service-ontology/getAnimalBasicDataInfo.owl#Output");
     }
-
-    private static String getNullAsEmptyString(JsonElement jsonElement) {
-        return jsonElement.isJsonNull() ? "" : jsonElement.getAsString();
-    }
 }
 
@@ -1,33 +1,31 @@
 package uk.ac.rothamsted.ide;
 
-import com.google.gson.*;
+import com.google.gson.JsonObject;
 import com.hp.hpl.jena.rdf.model.*;
 import org.apache.log4j.Logger;
-import org.apache.log4j.PropertyConfigurator;
 import org.sadiframework.service.annotations.*;
-import org.sadiframework.service.simple.SimpleSynchronousServiceServlet;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Iterator;
-import java.nio.charset.StandardCharsets;
 
 @Name("getCatchmentInfo")
 @Description("NWFP rest API: Get information about the catchments based on the identifier")
 @ContactEmail("sadnanalmanir@gmail.com")
 @InputClass("http://localhost:8080/ontology/service-ontology/getCatchmentInfo.owl#Input")
 @OutputClass("http://localhost:8080/ontology/service-ontology/getCatchmentInfo.owl#Output")
-public class GetCatchmentInfo extends SimpleSynchronousServiceServlet {
+public class GetCatchmentInfo extends ParallelSynchronousServiceServlet {
 
     private static final Logger log = Logger.getLogger(GetCatchmentInfo.class);
 
+    private static final EmissionPlan EMISSION = EmissionPlan.builder(Vocab.type, Vocab.has_value)
+            .field("Name", Vocab.has_name, Vocab.Name)
+            .field("DisplayName", Vocab.has_displayName, Vocab.DisplayName)
+            .field("ValidFrom", Vocab.is_validFrom, Vocab.ValidFromDate)
+            .field("ValidUntil", Vocab.is_validUntil, Vocab.ValidUntilDate)
+            .field("HydrologicalCatchmentArea", Vocab.has_hydrologicalCatchmentArea, Vocab.HydrologicalCatchmentArea)
+            .field("FencedCatchmentArea", Vocab.has_fencedCatchmentArea, Vocab.FencedCatchmentArea)
+            .build();
+
     @Override
     public void processInput(Resource input, Resource output) {
 
-        PropertyConfigurator.configure(log.getClass().getClassLoader().getResource("log4j.properties"));
-
         log.info("*** SADI Service ***");
         log.info("Invoking SADI service: getCatchmentInfo");
 
@@ -38,96 +36,19 @@ public class GetCatchmentInfo extends SimpleSynchronousServiceServlet {
         Model outputModel = output.getModel();
 
         try {
-            // initiate GET request to the endpoint
+            // look up the record in the shared reference data store
             String endPoint = "https://nwfp.rothamsted.ac.uk:8443/getCatchments";
-            URL url = new URL(endPoint);
-            long startTime = System.currentTimeMillis();
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            // set connection timeout to 5 seconds
-            conn.setConnectTimeout(5000);
-            // set content reading timeout to 20 seconds
-            conn.setReadTimeout(20000);
-            conn.addRequestProperty("Accept-Language", "en-US,en;q=0.8");
-            conn.addRequestProperty("User-Agent", "Mozilla");
-            log.info("Request URL: " + url);
-
-            // gather response from the request
-            int status = conn.getResponseCode();
-            if (status == HttpURLConnection.HTTP_OK) {
-                log.info("'GET' Request is Successful. Http Status Code: " + status);
-                BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8));
-                String inputLine;
-                StringBuilder response = new StringBuilder();
-                log.info("Reading response...");
-                while ((inputLine = in.readLine()) != null) {
-                    response.append(inputLine);
-                }
-                in.close();
-                log.info("Done.");
-                conn.disconnect();
-                log.info("URL Connection closed.");
-                long endTime = System.currentTimeMillis();
-                log.info("Round trip response time = " + (endTime - startTime) + " ms");
-                log.info("API Response Data: " + response);
-
-                // Deserialize response data
-                JsonArray jsonArray = new Gson().fromJson(response.toString(), JsonArray.class);
-                Iterator<JsonElement> elementIterator = jsonArray.iterator();
-                JsonObject element;
-
-                // Read each unique identifier value
-                while (elementIterator.hasNext()) {
-                    element = elementIterator.next().getAsJsonObject();
-                    // Read current unique identifier value
-                    Literal idVal = outputModel.createTypedLiteral(element.get("Id").getAsInt());
-                    // check if the current id matches the extracted id
-                    if (idVal.getInt() == catchmentId){
-                        String nameVal = element.get("Name").getAsString();
-                        String displayNameVal = element.get("DisplayName").getAsString();
-                        String validFromVal = getNullAsEmptyString(element.get("ValidFrom"));
-                        String validUntilVal = getNullAsEmptyString(element.get("ValidUntil"));
-                        String hydrologicalCatchmentAreaVal = getNullAsEmptyString(element.get("HydrologicalCatchmentArea"));
-                        String fencedCatchmentAreaVal = getNullAsEmptyString(element.get("FencedCatchmentArea"));
-
-                        // populate the output model with instances and literal values
-                        Resource NameResource = outputModel.createResource();
-                        NameResource.addProperty(Vocab.type, Vocab.Name);
-                        NameResource.addLiteral(Vocab.has_value, nameVal);
-                        output.addProperty(Vocab.has_name, NameResource);
-
-                        Resource DisplayNameResource = outputModel.createResource();
-                        DisplayNameResource.addProperty(Vocab.type, Vocab.DisplayName);
-                        DisplayNameResource.addLiteral(Vocab.has_value, displayNameVal);
-                        output.addProperty(Vocab.has_displayName, DisplayNameResource);
-
-                        Resource ValidFromResource = outputModel.createResource();
-                        ValidFromResource.addProperty(Vocab.type, Vocab.ValidFromDate);
-                        ValidFromResource.addLiteral(Vocab.has_value, validFromVal);
-                        output.addProperty(Vocab.is_validFrom, ValidFromResource);
-
-                        Resource ValidUntilResource = outputModel.createResource();
-                        ValidUntilResource.addProperty(Vocab.type, Vocab.ValidUntilDate);
-                        ValidUntilResource.addLiteral(Vocab.has_value, validUntilVal);
-                        output.addProperty(Vocab.is_validUntil, ValidUntilResource);
-
-                        Resource HydrologicalCatchmentAreaResource = outputModel.createResource();
-                        HydrologicalCatchmentAreaResource.addProperty(Vocab.type, Vocab.HydrologicalCatchmentArea);
-                        HydrologicalCatchmentAreaResource.addLiteral(Vocab.has_value, hydrologicalCatchmentAreaVal);
-                        output.addProperty(Vocab.has_hydrologicalCatchmentArea, HydrologicalCatchmentAreaResource);
-
-                        Resource FencedCatchmentAreaResource = outputModel.createResource();
-                        FencedCatchmentAreaResource.addProperty(Vocab.type, Vocab.FencedCatchmentArea);
-                        FencedCatchmentAreaResource.addLiteral(Vocab.has_value, fencedCatchmentAreaVal);
-                        output.addProperty(Vocab.has_fencedCatchmentArea, FencedCatchmentAreaResource);
-                    }
-
-                }
-                log.info("getCatchmentInfo service completed.");
-            } else if (status > 299){
-                log.info("Error executing the GET method at " + endPoint);
+            JsonObject element = ReferenceDataStore.lookup(endPoint, catchmentId);
+            if (element != null) {
+                // populate the output model with instances and literal values
+                EMISSION.emit(output.asNode(), element, EmissionPlan.sink(outputModel));
+            } else {
+                log.info("No record found with Id " + catchmentId + " at " + endPoint);
             }
+            log.info("getCatchmentInfo service completed.");
         } catch (Exception e) {
             log.info(e);
+            Metrics.failed();
         }
 
 
@@ -160,10 +81,5 @@ public class GetCatchmentInfo extends SimpleSynchronousServiceServlet {
 
     }
 
-    private static String getNullAsEmptyString(JsonElement jsonElement) {
-        return jsonElement.isJsonNull() ? "" : jsonElement.getAsString();
-    }
-
-
 }
 
@@ -1,36 +1,28 @@
 package uk.ac.rothamsted.ide;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
 import com.hp.hpl.jena.rdf.model.*;
 import org.apache.log4j.Logger;
-import org.apache.log4j.PropertyConfigurator;
 import org.sadiframework.service.annotations.*;
-import org.sadiframework.service.simple.SimpleSynchronousServiceServlet;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Iterator;
-import java.nio.charset.StandardCharsets;
 
 @Name("getDataQualityInfo")
 @Description("NWFP rest API: Get information about the measurements of quality of data based on the identifier")
 @ContactEmail("sadnanalmanir@gmail.com")
 @InputClass("http://localhost:8080/ontology/service-ontology/getDataQualityInfo.owl#Input")
 @OutputClass("http://localhost:8080/ontology/service-ontology/getDataQualityInfo.owl#Output")
-public class GetDataQualityInfo extends SimpleSynchronousServiceServlet {
+public class GetDataQualityInfo extends ParallelSynchronousServiceServlet {
 
     private static final Logger log = Logger.getLogger(GetDataQualityInfo.class);
 
+    private static final EmissionPlan EMISSION = EmissionPlan.builder(Vocab.type, Vocab.has_value)
+            .field("Description", Vocab.has_description, Vocab.Description)
+            .field("Severity_Order", Vocab.has_severityOrder, Vocab.SeverityOrder, XSDDatatype.XSDint)
+            .build();
+
     @Override
     public void processInput(Resource input, Resource output) {
 
-        PropertyConfigurator.configure(log.getClass().getClassLoader().getResource("log4j.properties"));
-
         log.info("*** SADI Service ***");
         log.info("Invoking SADI service:  getDataQualityInfo");
 
@@ -41,72 +33,19 @@ public class GetDataQualityInfo extends SimpleSynchronousServiceServlet {
         Model outputModel = output.getModel();
 
         try {
-            // initiate GET request to the endpoint
+            // look up the record in the shared reference data store
             String endPoint = "https://nwfp.rothamsted.ac.uk:8443/getDataQualities";
-            URL url = new URL(endPoint);
-            long startTime = System.currentTimeMillis();
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            // set connection timeout to 5 seconds
-            conn.setConnectTimeout(5000);
-            // set content reading timeout to 20 seconds
-            conn.setReadTimeout(20000);
-            conn.addRequestProperty("Accept-Language", "en-US,en;q=0.8");
-            conn.addRequestProperty("User-Agent", "Mozilla");
-            log.info("Request URL: " + url);
-
-            // gather response from the request
-            int status = conn.getResponseCode();
-            if (status == HttpURLConnection.HTTP_OK) {
-                log.info("'GET' Request is Successful. Http Status Code: " + status);
-                BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8));
-                String inputLine;
-                StringBuilder response = new StringBuilder();
-                log.info("Reading response...");
-                while ((inputLine = in.readLine()) != null) {
-                    response.append(inputLine);
-                }
-                in.close();
-                log.info("Done.");
-                conn.disconnect();
-                log.info("URL Connection closed.");
-                long endTime = System.currentTimeMillis();
-                log.info("Round trip response time = " + (endTime - startTime) + " ms");
-                log.info("API Response Data: " + response);
-
-                // Deserialize response data
-                JsonArray jsonArray = new Gson().fromJson(response.toString(), JsonArray.class);
-                Iterator<JsonElement> elementIterator = jsonArray.iterator();
-                JsonObject element;
-
-                while (elementIterator.hasNext()) {
-
-                    element = elementIterator.next().getAsJsonObject();
-                    // Read current unique identifier value
-                    Literal idVal = outputModel.createTypedLiteral(element.get("Id").getAsInt());
-                    // check if the current id matches the extracted id
-                    if (idVal.getInt() == dataQualityId) {
-                        Literal descriptionVal = outputModel.createTypedLiteral(element.get("Description").getAsString());
-                        Literal severityOrderVal = outputModel.createTypedLiteral(element.get("Severity_Order").getAsInt());
-
-                        // populate the output model with instances and literal values
-                        Resource DescriptionResource = outputModel.createResource();
-                        DescriptionResource.addProperty(Vocab.type, Vocab.Description);
-                        DescriptionResource.addLiteral(Vocab.has_value, descriptionVal);
-                        output.addProperty(Vocab.has_description, DescriptionResource);
-
-                        Resource SeverityOrderResource = outputModel.createResource();
-                        SeverityOrderResource.addProperty(Vocab.type, Vocab.SeverityOrder);
-                        SeverityOrderResource.addLiteral(Vocab.has_value, severityOrderVal);
-                        output.addProperty(Vocab.has_severityOrder, SeverityOrderResource);
-                    }
-                }
-                log.info("getDataQualityInfo service completed.");
-            } else if (status > 299){
-                log.info("Error executing the GET method at " + endPoint);
+            JsonObject element = ReferenceDataStore.lookup(endPoint, dataQualityId);
+            if (element != null) {
+                // populate the output model with instances and literal values
+                EMISSION.emit(output.asNode(), element, EmissionPlan.sink(outputModel));
+            } else {
+                log.info("No record found with Id " + dataQualityId + " at " + endPoint);
             }
+            log.info("getDataQualityInfo service completed.");
         } catch (Exception e) {
-            log.error(e);
+            log.info(e);
+            Metrics.failed();
         }
     }
 
@@ -126,9 +65,5 @@ public class GetDataQualityInfo extends SimpleSynchronousServiceServlet {
         public static final Resource Output = m_model.createResource("http://localhost:8080/ontology/service-ontology/getDataQualityInfo.owl#Output");
 
     }
-
-    private static String getNullAsEmptyString(JsonElement jsonElement) {
-        return jsonElement.isJsonNull() ? "" : jsonElement.getAsString();
-    }
 }
 
@@ -1,36 +1,35 @@
 package uk.ac.rothamsted.ide;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.hp.hpl.jena.rdf.model.*;
 import org.apache.log4j.Logger;
-import org.apache.log4j.PropertyConfigurator;
 import org.sadiframework.service.annotations.*;
-import org.sadiframework.service.simple.SimpleSynchronousServiceServlet;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Iterator;
-import java.nio.charset.StandardCharsets;
 
 @Name("getFieldInfo")
 @Description("NWFP rest API: Get information about the fields based on the identifier")
 @ContactEmail("sadnanalmanir@gmail.com")
 @InputClass("http://localhost:8080/ontology/service-ontology/getFieldInfo.owl#Input")
 @OutputClass("http://localhost:8080/ontology/service-ontology/getFieldInfo.owl#Output")
-public class GetFieldInfo extends SimpleSynchronousServiceServlet {
+public class GetFieldInfo extends ParallelSynchronousServiceServlet {
 
     private static final Logger log = Logger.getLogger(GetFieldInfo.class);
 
+    private static final EmissionPlan EMISSION = EmissionPlan.builder(Vocab.type, Vocab.has_value)
+            .field("DisplayId", Vocab.has_displayId, Vocab.DisplayId)
+            .field("Name", Vocab.has_name, Vocab.Name)
+            .field("ValidFrom", Vocab.is_validFrom, Vocab.ValidFromDate)
+            .field("ValidUntil", Vocab.is_validUntil, Vocab.ValidUntilDate)
+            .field("CuttingArea", Vocab.has_cuttingArea, Vocab.CuttingArea)
+            .field("FencedArea", Vocab.has_fencedArea, Vocab.FencedArea)
+            .field("OrganicSpreadingArea", Vocab.has_organicSpreadingArea, Vocab.OrganicSpreadingArea)
+            .field("InorganicSpreadingArea", Vocab.has_inorganicSpreadingArea, Vocab.InorganicSpreadingArea)
+            .field("Catchment_Id", Vocab.has_catchmentId, Vocab.CatchmentId)
+            .field("HydrologicalArea", Vocab.has_hydrologicalArea, Vocab.HydrologicalArea)
+            .build();
+
     @Override
     public void processInput(Resource input, Resource output) {
 
-        PropertyConfigurator.configure(log.getClass().getClassLoader().getResource("log4j.properties"));
-
         log.info("*** SADI Service ***");
         log.info("Invoking SADI service:  getFieldInfo");
 
@@ -41,120 +40,19 @@ public class GetFieldInfo extends SimpleSynchronousServiceServlet {
         Model outputModel = output.getModel();
 
         try {
-            // initiate GET request to the endpoint
+            // look up the record in the shared reference data store
             String endPoint = "https://nwfp.rothamsted.ac.uk:8443/getFields";
-            URL url = new URL(endPoint);
-            long startTime = System.currentTimeMillis();
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            // set connection timeout to 5 seconds
-            conn.setConnectTimeout(5000);
-            // set content reading timeout to 20 seconds
-            conn.setReadTimeout(20000);
-            conn.addRequestProperty("Accept-Language", "en-US,en;q=0.8");
-            conn.addRequestProperty("User-Agent", "Mozilla");
-            log.info("Request URL: " + url);
-
-            // gather response from the request
-            int status = conn.getResponseCode();
-            if (status == HttpURLConnection.HTTP_OK) {
-                log.info("'GET' Request is Successful. Http Status Code: " + status);
-                BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8));
-                String inputLine;
-                StringBuilder response = new StringBuilder();
-                log.info("Reading response...");
-                while ((inputLine = in.readLine()) != null) {
-                    response.append(inputLine);
-                }
-                in.close();
-                log.info("Done.");
-                conn.disconnect();
-                log.info("URL Connection closed.");
-                long endTime = System.currentTimeMillis();
-                log.info("Round trip response time = " + (endTime - startTime) + " ms");
-                log.info("API Response Data: " + response);
-
-                // Deserialize response data
-                JsonArray jsonArray = new Gson().fromJson(response.toString(), JsonArray.class);
-                Iterator<JsonElement> elementIterator = jsonArray.iterator();
-                JsonObject element;
-
-                // Read each unique identifier value
-                while (elementIterator.hasNext()) {
-                    element = elementIterator.next().getAsJsonObject();
-                    // Read current unique identifier value
-                    Literal idVal = outputModel.createTypedLiteral(element.get("Id").getAsInt());
-                    // check if the current id matches the extracted id
-                    if (idVal.getInt() == fieldId) {
-                        String displayIdVal = getNullAsEmptyString(element.get("DisplayId"));
-                        String nameVal = getNullAsEmptyString(element.get("Name"));
-                        String validFromVal = getNullAsEmptyString(element.get("ValidFrom"));
-                        String validUntilVal = getNullAsEmptyString(element.get("ValidUntil"));
-                        String cuttingAreaVal = getNullAsEmptyString(element.get("CuttingArea"));
-                        String fencedAreaVal = getNullAsEmptyString(element.get("FencedArea"));
-                        String organicSpreadingAreaVal = getNullAsEmptyString(element.get("OrganicSpreadingArea"));
-                        String inorganicSpreadingAreaVal = getNullAsEmptyString(element.get("InorganicSpreadingArea"));
-                        String catchment_idVal = getNullAsEmptyString(element.get("Catchment_Id"));
-                        String hydrologicalAreaVal = getNullAsEmptyString(element.get("HydrologicalArea"));
-
-                        // populate the output model with instances and literal values
-                        Resource DisplayIdResource = outputModel.createResource();
-                        DisplayIdResource.addProperty(Vocab.type, Vocab.DisplayId);
-                        DisplayIdResource.addLiteral(Vocab.has_value, displayIdVal);
-                        output.addProperty(Vocab.has_displayId, DisplayIdResource);
-
-                        Resource NameResource = outputModel.createResource();
-                        NameResource.addProperty(Vocab.type, Vocab.Name);
-                        NameResource.addLiteral(Vocab.has_value, nameVal);
-                        output.addProperty(Vocab.has_name, NameResource);
-
-                        Resource ValidFromResource = outputModel.createResource();
-                        ValidFromResource.addProperty(Vocab.type, Vocab.ValidFromDate);
-                        ValidFromResource.addLiteral(Vocab.has_value, validFromVal);
-                        output.addProperty(Vocab.is_validFrom, ValidFromResource);
-
-                        Resource ValidUntilResource = outputModel.createResource();
-                        ValidUntilResource.addProperty(Vocab.type, Vocab.ValidUntilDate);
-                        ValidUntilResource.addLiteral(Vocab.has_value, validUntilVal);
-                        output.addProperty(Vocab.is_validUntil, ValidUntilResource);
-
-                        Resource CuttingAreaResource = outputModel.createResource();
-                        CuttingAreaResource.addProperty(Vocab.type, Vocab.CuttingArea);
-                        CuttingAreaResource.addLiteral(Vocab.has_value, cuttingAreaVal);
-                        output.addProperty(Vocab.has_cuttingArea, CuttingAreaResource);
-
-                        Resource FencedAreaResource = outputModel.createResource();
-                        FencedAreaResource.addProperty(Vocab.type, Vocab.FencedArea);
-                        FencedAreaResource.addLiteral(Vocab.has_value, fencedAreaVal);
-                        output.addProperty(Vocab.has_fencedArea, FencedAreaResource);
-
-                        Resource OrganicSpreadingAreaResource = outputModel.createResource();
-                        OrganicSpreadingAreaResource.addProperty(Vocab.type, Vocab.OrganicSpreadingArea);
-                        OrganicSpreadingAreaResource.addLiteral(Vocab.has_value, organicSpreadingAreaVal);
-                        output.addProperty(Vocab.has_organicSpreadingArea, OrganicSpreadingAreaResource);
-
-                        Resource InorganicSpreadingAreaResource = outputModel.createResource();
-                        InorganicSpreadingAreaResource.addProperty(Vocab.type, Vocab.InorganicSpreadingArea);
-                        InorganicSpreadingAreaResource.addLiteral(Vocab.has_value, inorganicSpreadingAreaVal);
-                        output.addProperty(Vocab.has_inorganicSpreadingArea, InorganicSpreadingAreaResource);
-
-                        Resource CatchmentIdResource = outputModel.createResource();
-                        CatchmentIdResource.addProperty(Vocab.type, Vocab.CatchmentId);
-                        CatchmentIdResource.addLiteral(Vocab.has_value, catchment_idVal);
-                        output.addProperty(Vocab.has_catchmentId, CatchmentIdResource);
-
-                        Resource HydrologicalAreaResource = outputModel.createResource();
-                        HydrologicalAreaResource.addProperty(Vocab.type, Vocab.HydrologicalArea);
-                        HydrologicalAreaResource.addLiteral(Vocab.has_value, hydrologicalAreaVal);
-                        output.addProperty(Vocab.has_hydrologicalArea, HydrologicalAreaResource);
-                    }
-                }
-                log.info("getFieldInfo service completed.");
-            } else if (status > 299){
-                log.info("Error executing the GET method at " + endPoint);
+            JsonObject element = ReferenceDataStore.lookup(endPoint, fieldId);
+            if (element != null) {
+                // populate the output model with instances and literal values
+                EMISSION.emit(output.asNode(), element, EmissionPlan.sink(outputModel));
+            } else {
+                log.info("No record found with Id " + fieldId + " at " + endPoint);
             }
+            log.info("getFieldInfo service completed.");
         } catch (Exception e) {
             log.info(e);
+            Metrics.failed();
         }
     }
 
@@ -189,9 +87,5 @@ public class GetFieldInfo extends SimpleSynchronousServiceServlet {
         public static final Resource Input = m_model.createResource("http://localhost:8080/ontology/service-ontology/getFieldInfo.owl#Input");
         public static final Resource Output = m_model.createResource("http://localhost:8080/ontology/service-ontology/getFieldInfo.owl#Output");
     }
-
-    private static String getNullAsEmptyString(JsonElement jsonElement) {
-        return jsonElement.isJsonNull() ? "" : jsonElement.getAsString();
-    }
 }
 
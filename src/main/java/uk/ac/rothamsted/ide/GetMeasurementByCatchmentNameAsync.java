@@ -0,0 +1,17 @@
+package uk.ac.rothamsted.ide;
+
+import com.hp.hpl.jena.rdf.model.Resource;
+import org.sadiframework.service.annotations.*;
+
+@Name("getMeasurementByCatchmentNameAsync")
+@Description("NWFP rest API: Get information about the measurements based on the type, start date, end date, and name of catchment, asynchronously")
+@ContactEmail("sadnanalmanir@gmail.com")
+@InputClass("http://localhost:8080/ontology/service-ontology/getMeasurementByCatchmentName.owl#Input")
+@OutputClass("http://localhost:8080/ontology/service-ontology/getMeasurementByCatchmentName.owl#Output")
+public class GetMeasurementByCatchmentNameAsync extends BoundedAsynchronousServiceServlet {
+
+    @Override
+    public void processInput(Resource input, Resource output) {
+        GetMeasurementByCatchmentName.process(input, output);
+    }
+}
@@ -1,44 +1,43 @@
 package uk.ac.rothamsted.ide;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.Resource;
 import org.apache.log4j.Logger;
-import org.apache.log4j.PropertyConfigurator;
 import org.sadiframework.service.annotations.*;
-import org.sadiframework.service.simple.SimpleSynchronousServiceServlet;
-
-import javax.net.ssl.HttpsURLConnection;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Iterator;
-import java.nio.charset.StandardCharsets;
 
 @Name("getMeasurementByDateRange")
 @Description("NWFP rest API: Get information about the measurements based on the type, start and end date")
 @ContactEmail("sadnanalmanir@gmail.com")
 @InputClass("http://localhost:8080/ontology/service-ontology/getMeasurementByDateRange.owl#Input")
 @OutputClass("http://localhost:8080/ontology/service-ontology/getMeasurementByDateRange.owl#Output")
-public class GetMeasurementByDateRange extends SimpleSynchronousServiceServlet {
+public class GetMeasurementByDateRange extends StreamingSynchronousServiceServlet {
     private static final Logger log = Logger.getLogger(GetMeasurementByDateRange.class);
 
+    private static final EmissionPlan MEASUREMENT = EmissionPlan.builder(Vocab.type, Vocab.has_value)
+            .typedField(Vocab.has_dateTime, Vocab.DateTime, XSDDatatype.XSDdateTime)
+            .typedField(Vocab.has_measurementValue, Vocab.MeasurementValue, XSDDatatype.XSDdouble)
+            .sharedField(Vocab.has_measurementTypeDisplayName, Vocab.MeasurementTypeDisplayName)
+            .sharedField(Vocab.has_locationName, Vocab.LocationName)
+            .sharedField(Vocab.has_catchmentDisplayName, Vocab.CatchmentDisplayName)
+            .sharedField(Vocab.has_dataQuality, Vocab.DataQuality)
+            .build(Measurement.COMPACT_OUTPUT);
+
     @Override
     public void processInput(Resource input, Resource output) {
+        process(input, output);
+    }
 
-        PropertyConfigurator.configure(log.getClass().getClassLoader().getResource("log4j.properties"));
+    /**
+     * Adds the measurements asked for by the input to the output; shared with {@link GetMeasurementByDateRangeAsync}.
+     */
+    static void process(Resource input, Resource output) {
 
         log.info("*** SADI Service ***");
         log.info("Invoking SADI service:  getMeasurementByDateRange");
-        Model outputModel = output.getModel();
-
         String startDateValue = input.getPropertyResourceValue(Vocab.has_startDate).getRequiredProperty(Vocab.has_value).getString();
         if (startDateValue == null | startDateValue.equals("")){
             log.info("Failed to extract start date from: "
@@ -60,107 +59,39 @@ public class GetMeasurementByDateRange extends SimpleSynchronousServiceServlet {
             throw new IllegalArgumentException("Failed to extract start type id from: "
                     + input.getLocalName() + " -> " + Vocab.has_measurementTypeId.getLocalName() + " -> " + Vocab.has_value.getLocalName());
         }
-        String body = "{\n" +
-                "    \"startDate\": \"" +startDateValue+ "\",\n" +
-                "    \"endDate\": \""+endDateValue+"\",\n" +
-                "    \"typeId\": "+typeIdValue+"\n" +
-                "}";
-        log.info("Data to send via POST method: " +body);
-
+        EmissionPlan.Emitter emitter = MEASUREMENT.emitter(output);
         try {
             String endPoint = "https://nwfp.rothamsted.ac.uk:8443/getMeasurementsByDateRange";
-            URL url = new URL(endPoint);
             long startTime = System.currentTimeMillis();
-            HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("User-Agent", "Mozilla/5.0");
-            conn.setDoOutput(true);
-            //conn.setConnectTimeout(5000);
-            //conn.setReadTimeout(20000);
-
-            try(OutputStream os = conn.getOutputStream()) {
-                byte[] inputToSend = body.getBytes("utf-8");
-                os.write(inputToSend, 0, inputToSend.length);
-            }
-
-            int status = conn.getResponseCode();
-
-            if (status == HttpURLConnection.HTTP_OK) {
-                log.info("'POST' Request is Successful. Http Status Code: " + status);
-                BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8));
-                String responseLine;
-                StringBuilder response = new StringBuilder();
-                log.info("Reading response...");
-                while ((responseLine = in.readLine()) != null) {
-                    response.append(responseLine);
-                }
-                in.close();
-                log.info("Done.");
-                conn.disconnect();
-                log.info("URL Connection closed.");
-                long endTime = System.currentTimeMillis();
-                log.info("Round trip response time = " + (endTime - startTime) + " ms");
-
-                log.info("API Response Data: " + response);
-
-                JsonArray jsonArray = new Gson().fromJson(response.toString(), JsonArray.class);
-
-                Iterator<JsonElement> elementIterator = jsonArray.iterator();
-                JsonObject element;
-
-                while (elementIterator.hasNext()) {
-
-                    element = elementIterator.next().getAsJsonObject();
-
-                    String dateTimeVal = getNullAsEmptyString(element.get("DateTime"));
-                    String valueVal = getNullAsEmptyString(element.get("Value"));
-                    String measurementTypeDisplayNameVal = getNullAsEmptyString(element.get("MeasTypeDisplayName"));
-                    String locationNameVal = getNullAsEmptyString(element.get("LocationName"));
-                    String catchmentDisplayNameVal = getNullAsEmptyString(element.get("CatchDisplayName"));
-                    String dataQualityVal = getNullAsEmptyString(element.get("dataQuality"));
-
-                    Resource DateTimeResource = outputModel.createResource();
-                    DateTimeResource.addProperty(Vocab.type, Vocab.DateTime);
-                    DateTimeResource.addLiteral(Vocab.has_value, dateTimeVal);
-                    output.addProperty(Vocab.has_dateTime, DateTimeResource);
-
-                    Resource MeasurementValueResource = outputModel.createResource();
-                    MeasurementValueResource.addProperty(Vocab.type, Vocab.MeasurementValue);
-                    MeasurementValueResource.addLiteral(Vocab.has_value, valueVal);
-                    output.addProperty(Vocab.has_measurementValue, MeasurementValueResource);
-
-                    Resource MeasurementTypeDisplayNameResource = outputModel.createResource();
-                    MeasurementTypeDisplayNameResource.addProperty(Vocab.type, Vocab.MeasurementTypeDisplayName);
-                    MeasurementTypeDisplayNameResource.addLiteral(Vocab.has_value, measurementTypeDisplayNameVal);
-                    output.addProperty(Vocab.has_measurementTypeDisplayName, MeasurementTypeDisplayNameResource);
-
-                    Resource LocationNameResource = outputModel.createResource();
-                    LocationNameResource.addProperty(Vocab.type, Vocab.LocationName);
-                    LocationNameResource.addLiteral(Vocab.has_value, locationNameVal);
-                    output.addProperty(Vocab.has_locationName, LocationNameResource);
-
-                    Resource CatchmentDisplayNameResource = outputModel.createResource();
-                    CatchmentDisplayNameResource.addProperty(Vocab.type, Vocab.CatchmentDisplayName);
-                    CatchmentDisplayNameResource.addLiteral(Vocab.has_value, catchmentDisplayNameVal);
-                    output.addProperty(Vocab.has_catchmentDisplayName, CatchmentDisplayNameResource);
-
-                    Resource DataQualityResource = outputModel.createResource();
-                    DataQualityResource.addProperty(Vocab.type, Vocab.DataQuality);
-                    DataQualityResource.addLiteral(Vocab.has_value, dataQualityVal);
-                    output.addProperty(Vocab.has_dataQuality, DataQualityResource);
-                }
-
-
-                log.info("getMeasurementByDateRange service completed.");
-            }else if (status > 299){
-                log.info("Error executing the POST method at " + endPoint);
+            if (MeasurementStore.read(typeIdValue, null, startDateValue, endDateValue, measurement -> addMeasurement(emitter, measurement))) {
+                log.info("Answered from the local measurement store");
+            } else {
+                // record the response so that the range can be answered locally next time
+                MeasurementStore.Batch batch = MeasurementStore.begin(typeIdValue, null, startDateValue, endDateValue);
+                // long ranges are fetched as several shorter ones in parallel, results still arrive in date order
+                DateRangeShards.fetch(endPoint, startDateValue, endDateValue, (startDate, endDate) -> "{\n" +
+                        "    \"startDate\": \"" +startDate+ "\",\n" +
+                        "    \"endDate\": \""+endDate+"\",\n" +
+                        "    \"typeId\": "+typeIdValue+"\n" +
+                        "}", element -> {
+                    Measurement measurement = Measurement.fromJson(element);
+                    batch.add(measurement);
+                    addMeasurement(emitter, measurement);
+                });
+                batch.commit();
             }
+            long endTime = System.currentTimeMillis();
+            log.info("Round trip response time = " + (endTime - startTime) + " ms");
+            log.info("getMeasurementByDateRange service completed.");
         } catch (Exception e) {
             log.info(e);
+            Metrics.failed();
         }
+    }
 
-
+    private static void addMeasurement(EmissionPlan.Emitter emitter, Measurement measurement) {
+        emitter.emit(measurement.dateTime, measurement.value,
+                measurement.typeDisplayName, measurement.locationName, measurement.catchmentDisplayName, measurement.dataQuality);
     }
 
     public static final class Vocab {
@@ -194,8 +125,5 @@ public class GetMeasurementByDateRange extends SimpleSynchronousServiceServlet {
         public static final Resource Output = m_model.createResource("http://localhost:8080/ontology/service-ontology/getMeasurementByDateRange.owl#Output");
     }
 
-    private static String getNullAsEmptyString(JsonElement jsonElement) {
-        return jsonElement.isJsonNull() ? "" : jsonElement.getAsString();
-    }
 }
 
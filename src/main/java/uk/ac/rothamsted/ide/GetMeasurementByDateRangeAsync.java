@@ -0,0 +1,17 @@
+package uk.ac.rothamsted.ide;
+
+import com.hp.hpl.jena.rdf.model.Resource;
+import org.sadiframework.service.annotations.*;
+
+@Name("getMeasurementByDateRangeAsync")
+@Description("NWFP rest API: Get information about the measurements based on the type, start and end date, asynchronously")
+@ContactEmail("sadnanalmanir@gmail.com")
+@InputClass("http://localhost:8080/ontology/service-ontology/getMeasurementByDateRange.owl#Input")
+@OutputClass("http://localhost:8080/ontology/service-ontology/getMeasurementByDateRange.owl#Output")
+public class GetMeasurementByDateRangeAsync extends BoundedAsynchronousServiceServlet {
+
+    @Override
+    public void processInput(Resource input, Resource output) {
+        GetMeasurementByDateRange.process(input, output);
+    }
+}
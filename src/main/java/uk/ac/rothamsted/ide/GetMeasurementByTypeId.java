@@ -1,45 +1,64 @@
 package uk.ac.rothamsted.ide;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.Resource;
 import org.apache.log4j.Logger;
-import org.apache.log4j.PropertyConfigurator;
 import org.sadiframework.service.annotations.*;
-import org.sadiframework.service.simple.SimpleSynchronousServiceServlet;
 
-import javax.net.ssl.HttpsURLConnection;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.IOException;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
-import java.util.Set;
-import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 @Name("getMeasurementByTypeId")
 @Description("NWFP rest API: Get paginated information about the measurements based on type, page, and number of pages")
 @ContactEmail("sadnanalmanir@gmail.com")
 @InputClass("http://localhost:8080/ontology/service-ontology/getMeasurementByTypeId.owl#Input")
 @OutputClass("http://localhost:8080/ontology/service-ontology/getMeasurementByTypeId.owl#Output")
-public class GetMeasurementByTypeId extends SimpleSynchronousServiceServlet {
+public class GetMeasurementByTypeId extends StreamingSynchronousServiceServlet {
     private static final Logger log = Logger.getLogger(GetMeasurementByTypeId.class);
 
+    private static final EmissionPlan MEASUREMENT = EmissionPlan.builder(Vocab.type, Vocab.has_value)
+            .typedField(Vocab.has_dateTime, Vocab.DateTime, XSDDatatype.XSDdateTime)
+            .typedField(Vocab.has_measurementValue, Vocab.MeasurementValue, XSDDatatype.XSDdouble)
+            .sharedField(Vocab.has_measurementTypeDisplayName, Vocab.MeasurementTypeDisplayName)
+            .sharedField(Vocab.has_locationName, Vocab.LocationName)
+            .sharedField(Vocab.has_catchmentDisplayName, Vocab.CatchmentDisplayName)
+            .sharedField(Vocab.has_dataQuality, Vocab.DataQuality)
+            .build(Measurement.COMPACT_OUTPUT);
+
+    // page number value that asks for every page of the measurement type
+    private static final String ALL_PAGES = "all";
+    // result kind of a parsed page, see SingleFlight
+    private static final String PAGE = "page";
+    // pages of the NWFP API are numbered from 1
+    private static final int FIRST_PAGE = 1;
+    private static final int MAX_PARALLEL_PAGES = Integer.getInteger("nwfp.measurements.maxParallelPages", 4);
+    private static final int MAX_PAGES = Integer.getInteger("nwfp.measurements.maxPages", 1000);
+    private static final String DATE_RANGE_END_POINT = "https://nwfp.rothamsted.ac.uk:8443/getMeasurementsByDateRange";
+
     @Override
     public void processInput(Resource input, Resource output) {
+        process(input, output);
+    }
 
-        PropertyConfigurator.configure(log.getClass().getClassLoader().getResource("log4j.properties"));
+    /**
+     * Adds the measurements asked for by the input to the output; shared with {@link GetMeasurementByTypeIdAsync}.
+     */
+    static void process(Resource input, Resource output) {
 
         log.info("*** SADI Service ***");
         log.info("Invoking SADI service:  getMeasurementByTypeId");
-        Model outputModel = output.getModel();
         String itemPerPageValue = input.getPropertyResourceValue(Vocab.has_itemPerPage).getRequiredProperty(Vocab.has_value).getString();
         if (itemPerPageValue == null | itemPerPageValue == ""){
             log.info("Failed to extract items per page from: "
@@ -61,123 +80,179 @@ public class GetMeasurementByTypeId extends SimpleSynchronousServiceServlet {
             throw new IllegalArgumentException("Failed to extract type id from: "
                     + input.getLocalName() + " -> " + Vocab.has_measurementTypeId.getLocalName() + " -> " + Vocab.has_value.getLocalName());
         }
-        String body = "{\n" +
-                "    \"numPerPage\": " + itemPerPageValue + ",\n" +
-                "    \"page\": " + pageNumberValue + ",\n" +
-                "    \"typeId\": " + typeIdValue + "\n" +
-                "}";
-
-        log.info("Retrieved from HYDRA inputs: " + body);
-
-
+        EmissionPlan.Emitter emitter = MEASUREMENT.emitter(output);
         try {
             String endPoint = "https://nwfp.rothamsted.ac.uk:8443/getMeasurementsByTypeId";
-            URL url = new URL(endPoint);
             long startTime = System.currentTimeMillis();
-            HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("User-Agent", "Mozilla/5.0");
-            conn.setDoOutput(true);
-            //conn.setConnectTimeout(5000);
-            //conn.setReadTimeout(20000);
-
-            try(OutputStream os = conn.getOutputStream()) {
-                byte[] inputToSend = body.getBytes("utf-8");
-                os.write(inputToSend, 0, inputToSend.length);
+            if (pageNumberValue.equalsIgnoreCase(ALL_PAGES)) {
+                if (MeasurementStore.readHistory(typeIdValue, measurement -> addMeasurement(emitter, measurement))) {
+                    log.info("Answered from the local measurement store up to yesterday");
+                    addTodaysMeasurements(typeIdValue, emitter);
+                } else {
+                    // record every page so that the next request for all pages can be answered locally
+                    MeasurementStore.Batch batch = MeasurementStore.beginHistory(typeIdValue);
+                    if (processAllPages(endPoint, itemPerPageValue, typeIdValue, emitter, batch)) {
+                        batch.commit();
+                    }
+                }
+            } else {
+                String body = pageRequestBody(itemPerPageValue, pageNumberValue, typeIdValue);
+                log.info("Retrieved from HYDRA inputs: " + NwfpClient.abbreviate(body));
+                try (NwfpClient.Response upstream = NwfpClient.post(endPoint, body, 0)) {
+                    int status = upstream.getStatus();
+                    if (status == HttpURLConnection.HTTP_OK) {
+                        log.info("'POST' Request is Successful. Http Status Code: " + status);
+                        int totalPages = readPage(new JsonReader(upstream.getReader()), queryResult -> addMeasurement(emitter, Measurement.fromJson(queryResult)));
+                        log.info("Total number of pages: " + totalPages);
+                    } else if (status > 299){
+                        log.info("Error executing the POST method at " + endPoint);
+                        Metrics.failed();
+                        return;
+                    }
+                }
             }
+            long endTime = System.currentTimeMillis();
+            log.info("Round trip response time = " + (endTime - startTime) + " ms");
+            log.info("getMeasurementByTypeId service completed.");
+        } catch (Exception e) {
+            log.info(e);
+            Metrics.failed();
+        }
+    }
 
-            int status = conn.getResponseCode();
+    /**
+     * Fetches every page of the measurement type. The first page tells how many pages there are; the others
+     * are then fetched concurrently, at most MAX_PARALLEL_PAGES at a time, and added to the output (and to the
+     * batch) in page order, so that repeated calls give the same output. Returns false if not all pages were
+     * fetched.
+     */
+    private static boolean processAllPages(String endPoint, String itemPerPageValue, String typeIdValue, EmissionPlan.Emitter emitter,
+                                           MeasurementStore.Batch batch) throws Exception {
+        Page firstPage = fetchPage(endPoint, itemPerPageValue, FIRST_PAGE, typeIdValue);
+        addMeasurements(emitter, batch, firstPage.measurements);
+        int lastPage = FIRST_PAGE + firstPage.totalPages - 1;
+        boolean complete = true;
+        if (firstPage.totalPages > MAX_PAGES) {
+            complete = false;
+            log.info("Total number of pages " + firstPage.totalPages + " exceeds the limit, fetching the first " + MAX_PAGES + " pages only");
+            lastPage = FIRST_PAGE + MAX_PAGES - 1;
+        }
+        log.info("Fetching pages " + (FIRST_PAGE + 1) + " to " + lastPage + ", " + MAX_PARALLEL_PAGES + " at a time");
 
-            if (status == HttpURLConnection.HTTP_OK) {
-                log.info("'POST' Request is Successful. Http Status Code: " + status);
-                BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8));
-                String responseLine;
-                StringBuilder response = new StringBuilder();
-                log.info("Reading response...");
-                while ((responseLine = in.readLine()) != null) {
-                    response.append(responseLine);
+        // in page order; later pages are fetched while the oldest one is awaited
+        Deque<CompletableFuture<Page>> pending = new ArrayDeque<>();
+        int nextPage = FIRST_PAGE + 1;
+        try {
+            while (nextPage <= lastPage || !pending.isEmpty()) {
+                while (nextPage <= lastPage && pending.size() < MAX_PARALLEL_PAGES) {
+                    pending.add(fetchPageAsync(endPoint, itemPerPageValue, nextPage++, typeIdValue));
                 }
-                in.close();
-                log.info("Done.");
-                conn.disconnect();
-                log.info("URL Connection closed.");
-                long endTime = System.currentTimeMillis();
-                log.info("Round trip response time = " + (endTime - startTime) + " ms");
-
-                log.info("API Response Data: " + response);
-
-                JsonArray jsonArray = new Gson().fromJson(response.toString(), JsonArray.class);
-                Iterator<JsonElement> elementIterator = jsonArray.iterator();
-                JsonObject element;
-
-                while (elementIterator.hasNext()) {
-
-                    element = elementIterator.next().getAsJsonObject();
-                    Set<String> keyset = element.keySet();
-
-                    for (String key : keyset) {
-                        if (key.equals("totalPages")) {
-                            int totalPages = element.get("totalPages").getAsInt();
-                            log.info("Total number of pages: " + totalPages);
-                        }
-                        if (key.equals("queryResults")) {
-                            JsonArray queryResultsArray = element.get("queryResults").getAsJsonArray();
-                            log.info("Query Results: " + queryResultsArray);
-
-                            Iterator<JsonElement> queryResultsIterator = queryResultsArray.iterator();
-                            JsonObject queryResult;
-
-                            while (queryResultsIterator.hasNext()) {
-                                queryResult = queryResultsIterator.next().getAsJsonObject();
-                                String dateTimeVal = getNullAsEmptyString(queryResult.get("DateTime"));
-                                String valueVal = getNullAsEmptyString(queryResult.get("Value"));
-                                String measurementTypeDisplayNameVal = getNullAsEmptyString(queryResult.get("MeasTypeDisplayName"));
-                                String locationNameVal = getNullAsEmptyString(queryResult.get("LocationName"));
-                                String catchmentDisplayNameVal = getNullAsEmptyString(queryResult.get("CatchDisplayName"));
-                                String dataQualityVal = getNullAsEmptyString(queryResult.get("dataQuality"));
-
-                                Resource DateTimeResource = outputModel.createResource();
-                                DateTimeResource.addProperty(Vocab.type, Vocab.DateTime);
-                                DateTimeResource.addLiteral(Vocab.has_value, dateTimeVal);
-                                output.addProperty(Vocab.has_dateTime, DateTimeResource);
-
-                                Resource MeasurementValueResource = outputModel.createResource();
-                                MeasurementValueResource.addProperty(Vocab.type, Vocab.MeasurementValue);
-                                MeasurementValueResource.addLiteral(Vocab.has_value, valueVal);
-                                output.addProperty(Vocab.has_measurementValue, MeasurementValueResource);
-
-                                Resource MeasurementTypeDisplayNameResource = outputModel.createResource();
-                                MeasurementTypeDisplayNameResource.addProperty(Vocab.type, Vocab.MeasurementTypeDisplayName);
-                                MeasurementTypeDisplayNameResource.addLiteral(Vocab.has_value, measurementTypeDisplayNameVal);
-                                output.addProperty(Vocab.has_measurementTypeDisplayName, MeasurementTypeDisplayNameResource);
-
-                                Resource LocationNameResource = outputModel.createResource();
-                                LocationNameResource.addProperty(Vocab.type, Vocab.LocationName);
-                                LocationNameResource.addLiteral(Vocab.has_value, locationNameVal);
-                                output.addProperty(Vocab.has_locationName, LocationNameResource);
-
-                                Resource CatchmentDisplayNameResource = outputModel.createResource();
-                                CatchmentDisplayNameResource.addProperty(Vocab.type, Vocab.CatchmentDisplayName);
-                                CatchmentDisplayNameResource.addLiteral(Vocab.has_value, catchmentDisplayNameVal);
-                                output.addProperty(Vocab.has_catchmentDisplayName, CatchmentDisplayNameResource);
-
-                                Resource DataQualityResource = outputModel.createResource();
-                                DataQualityResource.addProperty(Vocab.type, Vocab.DataQuality);
-                                DataQualityResource.addLiteral(Vocab.has_value, dataQualityVal);
-                                output.addProperty(Vocab.has_dataQuality, DataQualityResource);
-                            }
-                        }
+                // Jena models are not thread-safe, so pages are merged here rather than on the fetching threads
+                addMeasurements(emitter, batch, pending.peek().get().measurements);
+                pending.remove();
+            }
+        } finally {
+            for (CompletableFuture<Page> future : pending) {
+                future.cancel(true);
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Adds the measurements of the type taken today, which the local store does not hold yet.
+     */
+    private static void addTodaysMeasurements(String typeIdValue, EmissionPlan.Emitter emitter) throws Exception {
+        String today = MeasurementStore.today().toString();
+        String tomorrow = MeasurementStore.today().plusDays(1).toString();
+        DateRangeShards.fetch(DATE_RANGE_END_POINT, today, tomorrow, (startDate, endDate) -> "{\n" +
+                "    \"startDate\": \"" +startDate+ "\",\n" +
+                "    \"endDate\": \""+endDate+"\",\n" +
+                "    \"typeId\": "+typeIdValue+"\n" +
+                "}", element -> {
+            Measurement measurement = Measurement.fromJson(element);
+            if (measurement.dateTime.compareTo(today) >= 0) {
+                addMeasurement(emitter, measurement);
+            }
+        });
+    }
+
+    private static Page fetchPage(String endPoint, String itemPerPageValue, int pageNumber, String typeIdValue) throws IOException {
+        String body = pageRequestBody(itemPerPageValue, String.valueOf(pageNumber), typeIdValue);
+        // concurrent requests for the same page share one download
+        return SingleFlight.call("POST", endPoint, body, PAGE, () -> {
+            try (NwfpClient.Response upstream = NwfpClient.post(endPoint, body, 0)) {
+                return toPage(endPoint, pageNumber, upstream);
+            }
+        });
+    }
+
+    private static CompletableFuture<Page> fetchPageAsync(String endPoint, String itemPerPageValue, int pageNumber, String typeIdValue) {
+        String body = pageRequestBody(itemPerPageValue, String.valueOf(pageNumber), typeIdValue);
+        return NwfpClient.sendAsync(endPoint, body, 0, PAGE, upstream -> toPage(endPoint, pageNumber, upstream));
+    }
+
+    private static Page toPage(String endPoint, int pageNumber, NwfpClient.Response upstream) throws IOException {
+        int status = upstream.getStatus();
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Error executing the POST method at " + endPoint + " for page " + pageNumber + ". Http Status Code: " + status);
+        }
+        Page page = new Page();
+        page.totalPages = readPage(new JsonReader(upstream.getReader()), queryResult -> page.measurements.add(Measurement.fromJson(queryResult)));
+        return page;
+    }
+
+    private static String pageRequestBody(String itemPerPageValue, String pageNumberValue, String typeIdValue) {
+        return "{\n" +
+                "    \"numPerPage\": " + itemPerPageValue + ",\n" +
+                "    \"page\": " + pageNumberValue + ",\n" +
+                "    \"typeId\": " + typeIdValue + "\n" +
+                "}";
+    }
+
+    /**
+     * Reads one page of the response as it arrives: [{"totalPages": n}, {"queryResults": [...]}].
+     * Each query result is handed to the consumer; the total number of pages is returned.
+     */
+    private static int readPage(JsonReader reader, Consumer<JsonObject> queryResults) throws IOException {
+        int totalPages = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                if (key.equals("totalPages")) {
+                    totalPages = reader.nextInt();
+                } else if (key.equals("queryResults")) {
+                    Iterator<JsonObject> queryResultsIterator = JsonStreams.arrayElements(reader);
+                    while (queryResultsIterator.hasNext()) {
+                        queryResults.accept(queryResultsIterator.next());
                     }
+                } else {
+                    reader.skipValue();
                 }
-            } else if (status > 299){
-                log.info("Error executing the POST method at " + endPoint);
             }
-        } catch (Exception e) {
-            log.info(e);
+            reader.endObject();
         }
+        reader.endArray();
+        return totalPages;
+    }
+
+    private static void addMeasurements(EmissionPlan.Emitter emitter, MeasurementStore.Batch batch, List<Measurement> measurements) {
+        for (Measurement measurement : measurements) {
+            batch.add(measurement);
+            addMeasurement(emitter, measurement);
+        }
+    }
 
+    private static void addMeasurement(EmissionPlan.Emitter emitter, Measurement measurement) {
+        emitter.emit(measurement.dateTime, measurement.value,
+                measurement.typeDisplayName, measurement.locationName, measurement.catchmentDisplayName, measurement.dataQuality);
+    }
 
+    private static final class Page {
+        int totalPages;
+        final List<Measurement> measurements = new ArrayList<>();
     }
 
     public static final class Vocab {
@@ -210,8 +285,5 @@ public class GetMeasurementByTypeId extends SimpleSynchronousServiceServlet {
         public static final Resource Output = m_model.createResource("http://localhost:8080/ontology/service-ontology/getMeasurementByTypeId.owl#Output");
     }
 
-    private static String getNullAsEmptyString(JsonElement jsonElement) {
-        return jsonElement.isJsonNull() ? "" : jsonElement.getAsString();
-    }
 }
 
@@ -0,0 +1,17 @@
+package uk.ac.rothamsted.ide;
+
+import com.hp.hpl.jena.rdf.model.Resource;
+import org.sadiframework.service.annotations.*;
+
+@Name("getMeasurementByTypeIdAsync")
+@Description("NWFP rest API: Get paginated information about the measurements based on type, page, and number of pages, asynchronously")
+@ContactEmail("sadnanalmanir@gmail.com")
+@InputClass("http://localhost:8080/ontology/service-ontology/getMeasurementByTypeId.owl#Input")
+@OutputClass("http://localhost:8080/ontology/service-ontology/getMeasurementByTypeId.owl#Output")
+public class GetMeasurementByTypeIdAsync extends BoundedAsynchronousServiceServlet {
+
+    @Override
+    public void processInput(Resource input, Resource output) {
+        GetMeasurementByTypeId.process(input, output);
+    }
+}
@@ -1,36 +1,33 @@
 package uk.ac.rothamsted.ide;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.hp.hpl.jena.rdf.model.*;
 import org.apache.log4j.Logger;
-import org.apache.log4j.PropertyConfigurator;
 import org.sadiframework.service.annotations.*;
-import org.sadiframework.service.simple.SimpleSynchronousServiceServlet;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Iterator;
-import java.nio.charset.StandardCharsets;
 
 @Name("getMeasurementTypeInfo")
 @Description("NWFP rest API: Get information about the types of measurements based on the identifier")
 @ContactEmail("sadnanalmanir@gmail.com")
 @InputClass("http://localhost:8080/ontology/service-ontology/getMeasurementTypeInfo.owl#Input")
 @OutputClass("http://localhost:8080/ontology/service-ontology/getMeasurementTypeInfo.owl#Output")
-public class GetMeasurementTypeInfo extends SimpleSynchronousServiceServlet {
+public class GetMeasurementTypeInfo extends ParallelSynchronousServiceServlet {
 
     private static final Logger log = Logger.getLogger(GetMeasurementTypeInfo.class);
 
+    private static final EmissionPlan EMISSION = EmissionPlan.builder(Vocab.type, Vocab.has_value)
+            .field("DisplayName", Vocab.has_displayName, Vocab.DisplayName)
+            .field("Name", Vocab.has_name, Vocab.Name)
+            .field("Unit", Vocab.has_unit, Vocab.Unit)
+            .field("DisplayUnit", Vocab.has_displayUnit, Vocab.DisplayUnit)
+            .field("LLO", Vocab.has_llo, Vocab.LLO)
+            .field("ULO", Vocab.has_ulo, Vocab.ULO)
+            .field("Group", Vocab.has_group, Vocab.Group)
+            .field("SystemSetQuality", Vocab.has_systemSetQuality, Vocab.SystemSetQuality)
+            .build();
+
     @Override
     public void processInput(Resource input, Resource output) {
 
-        PropertyConfigurator.configure(log.getClass().getClassLoader().getResource("log4j.properties"));
-
         log.info("*** SADI Service ***");
         log.info("Invoking SADI service:  getMeasurementTypeInfo");
 
@@ -41,108 +38,19 @@ public class GetMeasurementTypeInfo extends SimpleSynchronousServiceServlet {
         Model outputModel = output.getModel();
 
         try {
-            // initiate GET request to the endpoint
+            // look up the record in the shared reference data store
             String endPoint = "https://nwfp.rothamsted.ac.uk:8443/getMeasurementTypes";
-            URL url = new URL(endPoint);
-            long startTime = System.currentTimeMillis();
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            // set connection timeout to 5 seconds
-            conn.setConnectTimeout(5000);
-            // set content reading timeout to 20 seconds
-            conn.setReadTimeout(20000);
-            conn.addRequestProperty("Accept-Language", "en-US,en;q=0.8");
-            conn.addRequestProperty("User-Agent", "Mozilla");
-            log.info("Request URL: " + url);
-
-            // gather response from the request
-            int status = conn.getResponseCode();
-            if (status == HttpURLConnection.HTTP_OK) {
-                log.info("'GET' Request is Successful. Http Status Code: " + status);
-                BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8));
-                String inputLine;
-                StringBuilder response = new StringBuilder();
-                log.info("Reading response...");
-                while ((inputLine = in.readLine()) != null) {
-                    response.append(inputLine);
-                }
-                in.close();
-                log.info("Done.");
-                conn.disconnect();
-                log.info("URL Connection closed.");
-                long endTime = System.currentTimeMillis();
-                log.info("Round trip response time = " + (endTime - startTime) + " ms");
-                log.info("API Response Data: " + response);
-
-                // Deserialize response data
-                JsonArray jsonArray = new Gson().fromJson(response.toString(), JsonArray.class);
-                Iterator<JsonElement> elementIterator = jsonArray.iterator();
-                JsonObject element;
-
-                // Read each unique identifier value
-                while (elementIterator.hasNext()) {
-                    element = elementIterator.next().getAsJsonObject();
-                    // Read current unique identifier value
-                    Literal idVal = outputModel.createTypedLiteral(element.get("Id").getAsInt());
-                    // check if the current id matches the extracted id
-                    if (idVal.getInt() == measurementTypeId) {
-                        String displayNameVal = getNullAsEmptyString(element.get("DisplayName"));
-                        String nameVal = getNullAsEmptyString(element.get("Name"));
-                        String unitVal = getNullAsEmptyString(element.get("Unit"));
-                        String displayUnitVal = getNullAsEmptyString(element.get("DisplayUnit"));
-                        String lLOVal = getNullAsEmptyString(element.get("LLO"));
-                        String uLOVal = getNullAsEmptyString(element.get("ULO"));
-                        String groupVal = getNullAsEmptyString(element.get("Group"));
-                        String systemSetQualityVal = getNullAsEmptyString(element.get("SystemSetQuality"));
-
-                        // populate the output model with instances and literal values
-                        Resource DisplayNameResource = outputModel.createResource();
-                        DisplayNameResource.addProperty(Vocab.type, Vocab.DisplayName);
-                        DisplayNameResource.addLiteral(Vocab.has_value, displayNameVal);
-                        output.addProperty(Vocab.has_displayName, DisplayNameResource);
-
-                        Resource NameResource = outputModel.createResource();
-                        NameResource.addProperty(Vocab.type, Vocab.Name);
-                        NameResource.addLiteral(Vocab.has_value, nameVal);
-                        output.addProperty(Vocab.has_name, NameResource);
-
-                        Resource UnitResource = outputModel.createResource();
-                        UnitResource.addProperty(Vocab.type, Vocab.Unit);
-                        UnitResource.addLiteral(Vocab.has_value, unitVal);
-                        output.addProperty(Vocab.has_unit, UnitResource);
-
-                        Resource DisplayUnitResource = outputModel.createResource();
-                        DisplayUnitResource.addProperty(Vocab.type, Vocab.DisplayUnit);
-                        DisplayUnitResource.addLiteral(Vocab.has_value, displayUnitVal);
-                        output.addProperty(Vocab.has_displayUnit, DisplayUnitResource);
-
-                        Resource LLOResource = outputModel.createResource();
-                        LLOResource.addProperty(Vocab.type, Vocab.LLO);
-                        LLOResource.addLiteral(Vocab.has_value, lLOVal);
-                        output.addProperty(Vocab.has_llo, LLOResource);
-
-                        Resource ULOResource = outputModel.createResource();
-                        ULOResource.addProperty(Vocab.type, Vocab.ULO);
-                        ULOResource.addLiteral(Vocab.has_value, uLOVal);
-                        output.addProperty(Vocab.has_ulo, ULOResource);
-
-                        Resource GroupResource = outputModel.createResource();
-                        GroupResource.addProperty(Vocab.type, Vocab.Group);
-                        GroupResource.addLiteral(Vocab.has_value, groupVal);
-                        output.addProperty(Vocab.has_group, GroupResource);
-
-                        Resource SystemSetQualityResource = outputModel.createResource();
-                        SystemSetQualityResource.addProperty(Vocab.type, Vocab.SystemSetQuality);
-                        SystemSetQualityResource.addLiteral(Vocab.has_value, systemSetQualityVal);
-                        output.addProperty(Vocab.has_systemSetQuality, SystemSetQualityResource);
-                    }
-                }
-                log.info("getMeasurementTypeInfo service completed.");
-            } else if (status > 299){
-                log.info("Error executing the POST method at " + endPoint);
+            JsonObject element = ReferenceDataStore.lookup(endPoint, measurementTypeId);
+            if (element != null) {
+                // populate the output model with instances and literal values
+                EMISSION.emit(output.asNode(), element, EmissionPlan.sink(outputModel));
+            } else {
+                log.info("No record found with Id " + measurementTypeId + " at " + endPoint);
             }
+            log.info("getMeasurementTypeInfo service completed.");
         } catch (Exception e) {
             log.info(e);
+            Metrics.failed();
         }
     }
 
@@ -174,9 +82,5 @@ public class GetMeasurementTypeInfo extends SimpleSynchronousServiceServlet {
         public static final Resource Input = m_model.createResource("http://localhost:8080/ontology/service-ontology/getMeasurementTypeInfo.owl#Input");
         public static final Resource Output = m_model.createResource("http://localhost:8080/ontology/service-ontology/getMeasurementTypeInfo.owl#Output");
     }
-
-    private static String getNullAsEmptyString(JsonElement jsonElement) {
-        return jsonElement.isJsonNull() ? "" : jsonElement.getAsString();
-    }
 }
 
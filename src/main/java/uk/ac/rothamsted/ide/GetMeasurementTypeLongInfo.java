@@ -1,35 +1,32 @@
 package uk.ac.rothamsted.ide;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.hp.hpl.jena.rdf.model.*;
 import org.apache.log4j.Logger;
-import org.apache.log4j.PropertyConfigurator;
 import org.sadiframework.service.annotations.*;
-import org.sadiframework.service.simple.SimpleSynchronousServiceServlet;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 
 @Name("getMeasurementTypeLongInfo")
 @Description("NWFP rest API: Get information about the measurements in the long-form based on the identifier")
 @ContactEmail("sadnanalmanir@gmail.com")
 @InputClass("http://localhost:8080/ontology/service-ontology/getMeasurementTypeLongInfo.owl#Input")
 @OutputClass("http://localhost:8080/ontology/service-ontology/getMeasurementTypeLongInfo.owl#Output")
-public class GetMeasurementTypeLongInfo extends SimpleSynchronousServiceServlet {
+public class GetMeasurementTypeLongInfo extends ParallelSynchronousServiceServlet {
 
     private static final Logger log = Logger.getLogger(GetMeasurementTypeLongInfo.class);
 
+    private static final EmissionPlan EMISSION = EmissionPlan.builder(Vocab.type, Vocab.has_value)
+            .field(Vocab.has_name, Vocab.Name)
+            .field(Vocab.has_displayName, Vocab.DisplayName)
+            .field(Vocab.has_unit, Vocab.Unit)
+            .field(Vocab.has_displayUnit, Vocab.DisplayUnit)
+            .field(Vocab.has_systemSetQuality, Vocab.SystemSetQuality)
+            .build();
+
     @Override
     public void processInput(Resource input, Resource output) {
 
-        PropertyConfigurator.configure(log.getClass().getClassLoader().getResource("log4j.properties"));
-
         log.info("*** SADI Service ***");
         log.info("Invoking SADI service:  getMeasurementTypeLongInfo");
 
@@ -42,104 +39,50 @@ public class GetMeasurementTypeLongInfo extends SimpleSynchronousServiceServlet
         try {
             // initiate GET request to the endpoint
             String endPoint = "https://nwfp.rothamsted.ac.uk:8443/getMeasurementTypesLong";
-            URL url = new URL(endPoint);
             long startTime = System.currentTimeMillis();
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            // set connection timeout to 2 seconds
-            conn.setConnectTimeout(5000);
-            // set content reading timeout to 5 seconds
-            conn.setReadTimeout(20000);
-            conn.addRequestProperty("Accept-Language", "en-US,en;q=0.8");
-            conn.addRequestProperty("User-Agent", "Mozilla");
-            log.info("Request URL: " + url);
-
-            // gather response from the request
-            int status = conn.getResponseCode();
-            if (status == HttpURLConnection.HTTP_OK) {
-                log.info("'GET' Request is Successful. Http Status Code: " + status);
-                BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8));
-                String inputLine;
-                StringBuilder response = new StringBuilder();
-                log.info("Reading response...");
-                while ((inputLine = in.readLine()) != null) {
-                    response.append(inputLine);
-                }
-                in.close();
-                log.info("Done.");
-                conn.disconnect();
-                log.info("URL Connection closed.");
-                long endTime = System.currentTimeMillis();
-                log.info("Round trip response time = " + (endTime - startTime) + " ms");
-
-                log.info("API Response Data: " + response);
-
-                JsonObject jsonObject = new Gson().fromJson(response.toString(), JsonObject.class);
-                JsonArray idsJsonArray= jsonObject.get("Ids").getAsJsonArray();
-                JsonArray namesJsonArray= jsonObject.get("Names").getAsJsonArray();
-                JsonArray displayNamesJsonArray= jsonObject.get("DisplayNames").getAsJsonArray();
-                JsonArray unitsJsonArray= jsonObject.get("Units").getAsJsonArray();
-                JsonArray displayUnitsJsonArray= jsonObject.get("DisplayUnits").getAsJsonArray();
-                JsonArray systemSetQualityJsonArray= jsonObject.get("SystemSetQuality").getAsJsonArray();
-
-                if (idsJsonArray.size() == namesJsonArray.size()
-                        && idsJsonArray.size() == displayNamesJsonArray.size()
-                        && idsJsonArray.size() == unitsJsonArray.size()
-                        && idsJsonArray.size() == displayUnitsJsonArray.size()
-                        && idsJsonArray.size() == systemSetQualityJsonArray.size()
-                ) {
-                    for (int i=0; i<idsJsonArray.size();i++) {
-                        log.info("Ids: " + getNullAsEmptyString(idsJsonArray.get(i))
+            // set content reading timeout to 20 seconds; concurrent requests share one download
+            JsonObject jsonObject = NwfpClient.getJson(endPoint, 20000).getAsJsonObject();
+            long endTime = System.currentTimeMillis();
+            log.info("Round trip response time = " + (endTime - startTime) + " ms");
+
+            JsonArray idsJsonArray= jsonObject.get("Ids").getAsJsonArray();
+            JsonArray namesJsonArray= jsonObject.get("Names").getAsJsonArray();
+            JsonArray displayNamesJsonArray= jsonObject.get("DisplayNames").getAsJsonArray();
+            JsonArray unitsJsonArray= jsonObject.get("Units").getAsJsonArray();
+            JsonArray displayUnitsJsonArray= jsonObject.get("DisplayUnits").getAsJsonArray();
+            JsonArray systemSetQualityJsonArray= jsonObject.get("SystemSetQuality").getAsJsonArray();
+
+            if (idsJsonArray.size() == namesJsonArray.size()
+                    && idsJsonArray.size() == displayNamesJsonArray.size()
+                    && idsJsonArray.size() == unitsJsonArray.size()
+                    && idsJsonArray.size() == displayUnitsJsonArray.size()
+                    && idsJsonArray.size() == systemSetQualityJsonArray.size()
+            ) {
+                for (int i=0; i<idsJsonArray.size();i++) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Ids: " + getNullAsEmptyString(idsJsonArray.get(i))
                                 + " | Names: " + getNullAsEmptyString(namesJsonArray.get(i))
                                 + " | DisplayNames: " + getNullAsEmptyString(displayNamesJsonArray.get(i))
                                 + " | Units: " + getNullAsEmptyString(unitsJsonArray.get(i))
                                 + " | DisplayUnits: " + getNullAsEmptyString(displayUnitsJsonArray.get(i))
                                 + " | SystemSetQuality: " + getNullAsEmptyString(systemSetQualityJsonArray.get(i))
                         );
-                        // Read current unique identifier value
-                        Literal idVal = outputModel.createTypedLiteral(idsJsonArray.get(i).getAsInt());
-                        // check if the current id matches the extracted id
-                        if (idVal.getInt() == measurementTypeLongId) {
-                            String nameVal = getNullAsEmptyString(namesJsonArray.get(i));
-                            String displayNameVal = getNullAsEmptyString(displayNamesJsonArray.get(i));
-                            String unitVal = getNullAsEmptyString(unitsJsonArray.get(i));
-                            String displayUnitVal = getNullAsEmptyString(displayUnitsJsonArray.get(i));
-                            String systemSetQualityVal = getNullAsEmptyString(systemSetQualityJsonArray.get(i));
-
-                            // populate the output model with instances and literal values
-                            Resource NameResource = outputModel.createResource();
-                            NameResource.addProperty(Vocab.type, Vocab.Name);
-                            NameResource.addLiteral(Vocab.has_value, nameVal);
-                            output.addProperty(Vocab.has_name, NameResource);
-
-                            Resource DisplayNameResource = outputModel.createResource();
-                            DisplayNameResource.addProperty(Vocab.type, Vocab.DisplayName);
-                            DisplayNameResource.addLiteral(Vocab.has_value, displayNameVal);
-                            output.addProperty(Vocab.has_displayName, DisplayNameResource);
-
-                            Resource UnitResource = outputModel.createResource();
-                            UnitResource.addProperty(Vocab.type, Vocab.Unit);
-                            UnitResource.addLiteral(Vocab.has_value, unitVal);
-                            output.addProperty(Vocab.has_unit, UnitResource);
-
-                            Resource DisplayUnitResource = outputModel.createResource();
-                            DisplayUnitResource.addProperty(Vocab.type, Vocab.DisplayUnit);
-                            DisplayUnitResource.addLiteral(Vocab.has_value, displayUnitVal);
-                            output.addProperty(Vocab.has_displayUnit, DisplayUnitResource);
-
-                            Resource SystemSetQualityResource = outputModel.createResource();
-                            SystemSetQualityResource.addProperty(Vocab.type, Vocab.SystemSetQuality);
-                            SystemSetQualityResource.addLiteral(Vocab.has_value, systemSetQualityVal);
-                            output.addProperty(Vocab.has_systemSetQuality, SystemSetQualityResource);
-                        }
                     }
-                    log.info("getMeasurementTypeLongInfo service completed.");
+                    // check if the current id matches the extracted id
+                    if (idsJsonArray.get(i).getAsInt() == measurementTypeLongId) {
+                        // populate the output model with instances and literal values
+                        EMISSION.emitter(output).emit(getNullAsEmptyString(namesJsonArray.get(i)),
+                                getNullAsEmptyString(displayNamesJsonArray.get(i)),
+                                getNullAsEmptyString(unitsJsonArray.get(i)),
+                                getNullAsEmptyString(displayUnitsJsonArray.get(i)),
+                                getNullAsEmptyString(systemSetQualityJsonArray.get(i)));
+                    }
                 }
-            } else if (status > 299){
-                log.info("Error executing the GET method at " + endPoint);
+                log.info("getMeasurementTypeLongInfo service completed.");
             }
         } catch (Exception e) {
             log.info(e);
+            Metrics.failed();
         }
     }
 
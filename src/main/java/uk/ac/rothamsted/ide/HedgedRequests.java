@@ -0,0 +1,177 @@
+package uk.ac.rothamsted.ide;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hedged GET requests to the idempotent list endpoints named in nwfp.hedge.paths (comma separated, e.g.
+ * "getFields,getCatchments,getMeasurementTypes"; none by default).
+ * <p>
+ * When a call to such an endpoint takes longer than the nwfp.hedge.percentile (default 95) of its recent
+ * response times, a second identical call is made and whichever succeeds first is used. Each endpoint may
+ * hedge at most nwfp.hedge.budget percent (default 10) of its calls, so that hedging cannot multiply the load
+ * on an endpoint that is slow for everybody. Until nwfp.hedge.minSamples calls (default 20) were timed, calls
+ * are not hedged. Once one call succeeds the other is dropped, disconnecting its connection.
+ */
+final class HedgedRequests {
+
+    private static final Logger log = Logger.getLogger(HedgedRequests.class);
+
+    private static final Set<String> PATHS = new HashSet<>(Arrays.asList(System.getProperty("nwfp.hedge.paths", "").split("\\s*,\\s*")));
+    private static final int PERCENTILE = Integer.getInteger("nwfp.hedge.percentile", 95);
+    private static final int BUDGET = Integer.getInteger("nwfp.hedge.budget", 10);
+    private static final int MIN_SAMPLES = Integer.getInteger("nwfp.hedge.minSamples", 20);
+    private static final int SAMPLES = 128;
+    // hedges an endpoint can save up while it is fast
+    private static final int MAX_SAVED_HEDGES = 10;
+
+    private static final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    private HedgedRequests() {
+    }
+
+    static boolean isHedged(String endPoint) {
+        return PATHS.contains(endPoint.substring(endPoint.lastIndexOf('/') + 1));
+    }
+
+    /**
+     * Sends a GET request to the endpoint and reads its response with the handler, and a second one if the first
+     * is slow and the budget allows, returning the first result.
+     */
+    static <T> T call(String endPoint, int readTimeout, Map<String, String> headers, NwfpClient.ResponseHandler<T> handler)
+            throws IOException {
+        Endpoint endpoint = endpoints.computeIfAbsent(endPoint, k -> new Endpoint());
+        endpoint.earn();
+        Attempt<T> first = timed(endpoint, endPoint, readTimeout, headers, handler);
+        long delay = endpoint.percentile();
+        try {
+            if (delay < 0) {
+                return first.result.get();
+            }
+            try {
+                return first.result.get(delay, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // the second call is charged to the budget here and stays charged if it is dropped
+                if (!endpoint.spend()) {
+                    return first.result.get();
+                }
+            }
+            log.info("Hedging the call to " + endPoint + " after " + delay + " ms");
+            return firstSuccess(endPoint, first, timed(endpoint, endPoint, readTimeout, headers, handler)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + endPoint, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to call " + endPoint, cause);
+        }
+    }
+
+    private static <T> Attempt<T> timed(Endpoint endpoint, String endPoint, int readTimeout, Map<String, String> headers,
+                                        NwfpClient.ResponseHandler<T> handler) {
+        NwfpClient.Cancellation cancellation = new NwfpClient.Cancellation();
+        return new Attempt<>(CompletableFuture.supplyAsync(Trace.wrapSupplier(() -> {
+            long startTime = System.currentTimeMillis();
+            try (NwfpClient.Response upstream = NwfpClient.get(endPoint, readTimeout, headers, cancellation)) {
+                T result = handler.handle(upstream);
+                endpoint.record(System.currentTimeMillis() - startTime);
+                return result;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }), UpstreamExecutor.get()), cancellation);
+    }
+
+    private static <T> CompletableFuture<T> firstSuccess(String endPoint, Attempt<T> first, Attempt<T> second) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (Attempt<T> attempt : Arrays.asList(first, second)) {
+            Attempt<T> other = attempt == first ? second : first;
+            attempt.result.whenComplete((value, failure) -> {
+                if (failure == null) {
+                    if (result.complete(value) && !other.result.isDone()) {
+                        // free the other call's connection and thread rather than wait for its read timeout
+                        log.info("Dropping the slower call to " + endPoint);
+                        other.cancel();
+                    }
+                } else if (failures.incrementAndGet() == 2) {
+                    result.completeExceptionally(failure instanceof CompletionException ? failure.getCause() : failure);
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * One of the calls of a hedged request.
+     */
+    private static final class Attempt<T> {
+        final CompletableFuture<T> result;
+        final NwfpClient.Cancellation cancellation;
+
+        Attempt(CompletableFuture<T> result, NwfpClient.Cancellation cancellation) {
+            this.result = result;
+            this.cancellation = cancellation;
+        }
+
+        void cancel() {
+            // a call still queued for a pool thread is not started
+            result.cancel(false);
+            cancellation.cancel();
+        }
+    }
+
+    private static final class Endpoint {
+        private final long[] latencies = new long[SAMPLES];
+        private int next;
+        private int samples;
+        // hundredths of a hedge
+        private int budget;
+
+        synchronized void record(long millis) {
+            latencies[next] = millis;
+            next = (next + 1) % SAMPLES;
+            samples = Math.min(samples + 1, SAMPLES);
+        }
+
+        /**
+         * The configured percentile of the recent response times, or -1 while there are too few of them.
+         */
+        synchronized long percentile() {
+            if (samples < MIN_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(latencies, samples);
+            Arrays.sort(sorted);
+            return sorted[Math.min(samples - 1, samples * PERCENTILE / 100)];
+        }
+
+        synchronized void earn() {
+            budget = Math.min(budget + BUDGET, MAX_SAVED_HEDGES * 100);
+        }
+
+        synchronized boolean spend() {
+            if (budget < 100) {
+                return false;
+            }
+            budget -= 100;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package uk.ac.rothamsted.ide;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Pull-parsing helpers for the NWFP API responses. Elements of a JSON array are decoded one at a time
+ * while the response is being read, so only the current element is held in memory instead of the whole
+ * response body and its parsed tree. Decoding is traced as the {@link Trace.Phase#JSON_DECODE} phase.
+ */
+public final class JsonStreams {
+
+    private JsonStreams() {
+    }
+
+    /**
+     * Iterates over the objects of a response whose body is a JSON array of objects.
+     */
+    public static Iterator<JsonObject> arrayElements(Reader reader) {
+        return arrayElements(new JsonReader(reader));
+    }
+
+    /**
+     * Iterates over the objects of the JSON array at the current position of the reader.
+     * The reader is left just after the end of the array once the iterator is exhausted.
+     */
+    public static Iterator<JsonObject> arrayElements(JsonReader reader) {
+        return new ArrayIterator(reader);
+    }
+
+    /**
+     * Scans a response whose body is a JSON array of objects for the first object whose idMember equals id,
+     * and returns it without reading the rest of the response. Objects with another id are skipped member by
+     * member as soon as their id has been read; only the members listed before the id are decoded.
+     */
+    public static JsonObject findById(Reader in, String idMember, int id) throws IOException {
+        Trace.Phase previous = Trace.enter(Trace.Phase.JSON_DECODE);
+        try {
+            return scanForId(new JsonReader(in), idMember, id);
+        } finally {
+            Trace.exit(previous);
+        }
+    }
+
+    private static JsonObject scanForId(JsonReader reader, String idMember, int id) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            return null;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            JsonObject element = readIfIdMatches(reader, idMember, id);
+            if (element != null) {
+                return element;
+            }
+        }
+        reader.endArray();
+        return null;
+    }
+
+    private static JsonObject readIfIdMatches(JsonReader reader, String idMember, int id) throws IOException {
+        Metrics.recordsParsed(1);
+        JsonObject element = new JsonObject();
+        boolean matches = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonElement value = JsonParser.parseReader(reader);
+            if (name.equals(idMember)) {
+                if (value.isJsonNull() || value.getAsInt() != id) {
+                    // skip the rest of this object without decoding it
+                    while (reader.hasNext()) {
+                        reader.nextName();
+                        reader.skipValue();
+                    }
+                    reader.endObject();
+                    return null;
+                }
+                matches = true;
+            }
+            element.add(name, value);
+        }
+        reader.endObject();
+        return matches ? element : null;
+    }
+
+    private static final class ArrayIterator implements Iterator<JsonObject> {
+        private final JsonReader reader;
+        private boolean started;
+        private boolean finished;
+
+        ArrayIterator(JsonReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (finished) {
+                return false;
+            }
+            Trace.Phase previous = Trace.enter(Trace.Phase.JSON_DECODE);
+            try {
+                if (!started) {
+                    started = true;
+                    // an empty or null body has no elements
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                        finished = true;
+                        return false;
+                    }
+                    reader.beginArray();
+                }
+                if (reader.hasNext()) {
+                    return true;
+                }
+                reader.endArray();
+                finished = true;
+                return false;
+            } catch (IOException e) {
+                throw new JsonIOException(e);
+            } finally {
+                Trace.exit(previous);
+            }
+        }
+
+        @Override
+        public JsonObject next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Metrics.recordsParsed(1);
+            Trace.Phase previous = Trace.enter(Trace.Phase.JSON_DECODE);
+            try {
+                return JsonParser.parseReader(reader).getAsJsonObject();
+            } finally {
+                Trace.exit(previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package uk.ac.rothamsted.ide;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * One measurement as listed by the NWFP measurement endpoints, with every member kept as the string
+ * the API returned (null members as empty strings).
+ */
+public final class Measurement {
+
+    // whether the measurement services write typed values and describe repeated values once per output
+    static final boolean COMPACT_OUTPUT = Boolean.parseBoolean(System.getProperty("nwfp.measurements.compactOutput", "false"));
+
+    public final String dateTime;
+    public final String value;
+    public final String typeDisplayName;
+    public final String locationName;
+    public final String catchmentDisplayName;
+    public final String dataQuality;
+
+    public Measurement(String dateTime, String value, String typeDisplayName, String locationName,
+                       String catchmentDisplayName, String dataQuality) {
+        this.dateTime = dateTime;
+        this.value = value;
+        this.typeDisplayName = typeDisplayName;
+        this.locationName = locationName;
+        this.catchmentDisplayName = catchmentDisplayName;
+        this.dataQuality = dataQuality;
+    }
+
+    public static Measurement fromJson(JsonObject element) {
+        return new Measurement(getNullAsEmptyString(element.get("DateTime")),
+                getNullAsEmptyString(element.get("Value")),
+                getNullAsEmptyString(element.get("MeasTypeDisplayName")),
+                getNullAsEmptyString(element.get("LocationName")),
+                getNullAsEmptyString(element.get("CatchDisplayName")),
+                getNullAsEmptyString(element.get("dataQuality")));
+    }
+
+    private static String getNullAsEmptyString(JsonElement jsonElement) {
+        return jsonElement.isJsonNull() ? "" : jsonElement.getAsString();
+    }
+}
@@ -0,0 +1,242 @@
+package uk.ac.rothamsted.ide;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The measurements of one measurement type at one location, held column by column: timestamps as epoch
+ * milliseconds, values as doubles with the number of decimals they were written with, and data qualities
+ * as one-byte codes into a dictionary. The type, location and catchment names are the same for every row
+ * and are kept once.
+ * <p>
+ * Rows are only accepted when they read back as exactly the strings the API returned.
+ */
+final class MeasurementColumns {
+
+    // layouts of the DateTime member; one layout per partition, chosen by its first row
+    static final List<DateTimeFormatter> DATE_TIME_FORMATS = Arrays.asList(
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"),
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'"),
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS"),
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"),
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS"),
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"),
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm"),
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm"));
+    // scale of an empty value
+    static final byte NO_VALUE = -1;
+    // a one-byte code leaves room for this many distinct data qualities per partition
+    private static final int MAX_QUALITIES = 256;
+
+    String typeDisplayName;
+    String locationName;
+    String catchmentDisplayName;
+    int dateTimeFormat = -1;
+    final List<String> qualities = new ArrayList<>();
+    private final Map<String, Integer> qualityCodes = new HashMap<>();
+
+    long[] timestamps;
+    double[] values;
+    byte[] scales;
+    byte[] qualityColumn;
+    int size;
+
+    MeasurementColumns() {
+        this(16);
+    }
+
+    MeasurementColumns(int capacity) {
+        timestamps = new long[capacity];
+        values = new double[capacity];
+        scales = new byte[capacity];
+        qualityColumn = new byte[capacity];
+    }
+
+    /**
+     * Appends the measurement, or returns false if it cannot be stored so that it reads back unchanged.
+     */
+    boolean add(Measurement measurement) {
+        if (size == 0 && typeDisplayName == null) {
+            typeDisplayName = measurement.typeDisplayName;
+            locationName = measurement.locationName;
+            catchmentDisplayName = measurement.catchmentDisplayName;
+        } else if (!typeDisplayName.equals(measurement.typeDisplayName)
+                || !locationName.equals(measurement.locationName)
+                || !catchmentDisplayName.equals(measurement.catchmentDisplayName)) {
+            return false;
+        }
+        long timestamp = parseDateTime(measurement.dateTime);
+        if (timestamp == Long.MIN_VALUE) {
+            return false;
+        }
+        double value;
+        byte scale;
+        if (measurement.value.isEmpty()) {
+            value = Double.NaN;
+            scale = NO_VALUE;
+        } else {
+            try {
+                BigDecimal decimal = new BigDecimal(measurement.value);
+                if (decimal.scale() < 0 || decimal.scale() > Byte.MAX_VALUE) {
+                    return false;
+                }
+                value = decimal.doubleValue();
+                scale = (byte) decimal.scale();
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (!formatValue(value, scale).equals(measurement.value)) {
+                return false;
+            }
+        }
+        int quality = qualityCode(measurement.dataQuality);
+        if (quality < 0) {
+            return false;
+        }
+        add(timestamp, value, scale, (byte) quality);
+        return true;
+    }
+
+    Measurement get(int row) {
+        return new Measurement(formatDateTime(timestamps[row]), formatValue(values[row], scales[row]),
+                typeDisplayName, locationName, catchmentDisplayName, qualities.get(qualityColumn[row] & 0xFF));
+    }
+
+    String formatDateTime(long timestamp) {
+        return DATE_TIME_FORMATS.get(dateTimeFormat).format(LocalDateTime.ofEpochSecond(
+                Math.floorDiv(timestamp, 1000L), (int) Math.floorMod(timestamp, 1000L) * 1000000, ZoneOffset.UTC));
+    }
+
+    static String formatValue(double value, byte scale) {
+        if (scale == NO_VALUE) {
+            return "";
+        }
+        return BigDecimal.valueOf(value).setScale(scale, RoundingMode.HALF_EVEN).toPlainString();
+    }
+
+    /**
+     * Returns the rows of existing outside [fromMillis, toMillis) together with the rows of replacement inside it,
+     * in timestamp order, or null when the two do not share a DateTime layout.
+     */
+    static MeasurementColumns merge(MeasurementColumns existing, long fromMillis, long toMillis, MeasurementColumns replacement) {
+        if (existing.size > 0 && replacement.size > 0 && existing.dateTimeFormat != replacement.dateTimeFormat) {
+            return null;
+        }
+        MeasurementColumns merged = new MeasurementColumns(existing.size + replacement.size);
+        // names follow the latest response
+        MeasurementColumns names = replacement.size > 0 ? replacement : existing;
+        merged.typeDisplayName = names.typeDisplayName;
+        merged.locationName = names.locationName;
+        merged.catchmentDisplayName = names.catchmentDisplayName;
+        merged.dateTimeFormat = names.dateTimeFormat;
+        Integer[] order = replacement.sortedRows();
+        int next = 0;
+        for (int row = 0; row <= existing.size; row++) {
+            long timestamp = row < existing.size ? existing.timestamps[row] : Long.MAX_VALUE;
+            // replacement rows go before the first existing row that comes after them
+            while (next < order.length && (row == existing.size || replacement.timestamps[order[next]] <= timestamp)) {
+                long replacementTimestamp = replacement.timestamps[order[next]];
+                if (replacementTimestamp >= fromMillis && replacementTimestamp < toMillis
+                        && !merged.copy(replacement, order[next])) {
+                    return null;
+                }
+                next++;
+            }
+            if (row < existing.size && (timestamp < fromMillis || timestamp >= toMillis)) {
+                if (!merged.copy(existing, row)) {
+                    return null;
+                }
+            }
+        }
+        return merged;
+    }
+
+    void add(long timestamp, double value, byte scale, byte quality) {
+        if (size == timestamps.length) {
+            int capacity = Math.max(16, size * 2);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            values = Arrays.copyOf(values, capacity);
+            scales = Arrays.copyOf(scales, capacity);
+            qualityColumn = Arrays.copyOf(qualityColumn, capacity);
+        }
+        timestamps[size] = timestamp;
+        values[size] = value;
+        scales[size] = scale;
+        qualityColumn[size] = quality;
+        size++;
+    }
+
+    int qualityCode(String quality) {
+        Integer code = qualityCodes.get(quality);
+        if (code == null) {
+            if (qualities.size() == MAX_QUALITIES) {
+                return -1;
+            }
+            code = qualities.size();
+            qualities.add(quality);
+            qualityCodes.put(quality, code);
+        }
+        return code;
+    }
+
+    private boolean copy(MeasurementColumns from, int row) {
+        int quality = qualityCode(from.qualities.get(from.qualityColumn[row] & 0xFF));
+        if (quality < 0) {
+            return false;
+        }
+        add(from.timestamps[row], from.values[row], from.scales[row], (byte) quality);
+        return true;
+    }
+
+    private Integer[] sortedRows() {
+        Integer[] order = new Integer[size];
+        for (int row = 0; row < size; row++) {
+            order[row] = row;
+        }
+        // stable, so rows with the same timestamp keep the order of the response
+        Arrays.sort(order, Comparator.comparingLong(row -> timestamps[row]));
+        return order;
+    }
+
+    /**
+     * Parses the DateTime with the layout of this partition (choosing it on the first row), or returns
+     * Long.MIN_VALUE if it does not read back unchanged with that layout.
+     */
+    private long parseDateTime(String dateTime) {
+        if (dateTimeFormat < 0) {
+            for (int format = 0; format < DATE_TIME_FORMATS.size(); format++) {
+                if (parseDateTime(dateTime, format) != Long.MIN_VALUE) {
+                    dateTimeFormat = format;
+                    break;
+                }
+            }
+            if (dateTimeFormat < 0) {
+                return Long.MIN_VALUE;
+            }
+        }
+        return parseDateTime(dateTime, dateTimeFormat);
+    }
+
+    private static long parseDateTime(String dateTime, int format) {
+        DateTimeFormatter formatter = DATE_TIME_FORMATS.get(format);
+        try {
+            LocalDateTime parsed = LocalDateTime.parse(dateTime, formatter);
+            if (!formatter.format(parsed).equals(dateTime)) {
+                return Long.MIN_VALUE;
+            }
+            return parsed.toInstant(ZoneOffset.UTC).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package uk.ac.rothamsted.ide;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One file of the measurement store, holding the measurements of one type at one location.
+ * <p>
+ * Layout: magic, version, header length, header (names, DateTime layout, data quality dictionary, row count),
+ * then the columns one after another: timestamps (longs), values (doubles), value scales (bytes) and data
+ * quality codes (bytes). Files are memory-mapped for reading and replaced as a whole when written.
+ */
+final class MeasurementPartition {
+
+    static final String EXTENSION = ".col";
+    private static final int MAGIC = 0x4E57464D;
+    private static final int VERSION = 1;
+
+    final MeasurementColumns header;
+    private final int size;
+    private final LongBuffer timestamps;
+    private final DoubleBuffer values;
+    private final ByteBuffer scales;
+    private final ByteBuffer qualities;
+
+    private MeasurementPartition(MeasurementColumns header, int size, LongBuffer timestamps, DoubleBuffer values,
+                                 ByteBuffer scales, ByteBuffer qualities) {
+        this.header = header;
+        this.size = size;
+        this.timestamps = timestamps;
+        this.values = values;
+        this.scales = scales;
+        this.qualities = qualities;
+    }
+
+    /**
+     * File of the partition of the given location in the directory of a measurement type.
+     */
+    static Path file(Path typeDirectory, String locationName) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : locationName.getBytes(StandardCharsets.UTF_8)) {
+            name.append(String.format("%02x", b & 0xFF));
+        }
+        return typeDirectory.resolve(name + EXTENSION);
+    }
+
+    static String locationName(Path file) {
+        String name = file.getFileName().toString();
+        name = name.substring(0, name.length() - EXTENSION.length());
+        byte[] bytes = new byte[name.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(name.substring(i * 2, i * 2 + 2), 16);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static MeasurementPartition open(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a measurement store file: " + file);
+        }
+        byte[] headerBytes = new byte[buffer.getInt()];
+        buffer.get(headerBytes);
+        MeasurementColumns header = new MeasurementColumns(0);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(headerBytes));
+        header.typeDisplayName = in.readUTF();
+        header.locationName = in.readUTF();
+        header.catchmentDisplayName = in.readUTF();
+        header.dateTimeFormat = in.readInt();
+        int qualityCount = in.readInt();
+        for (int i = 0; i < qualityCount; i++) {
+            header.qualityCode(in.readUTF());
+        }
+        int size = in.readInt();
+
+        int offset = buffer.position();
+        LongBuffer timestamps = slice(buffer, offset, size * 8).asLongBuffer();
+        offset += size * 8;
+        DoubleBuffer values = slice(buffer, offset, size * 8).asDoubleBuffer();
+        offset += size * 8;
+        ByteBuffer scales = slice(buffer, offset, size);
+        offset += size;
+        ByteBuffer qualities = slice(buffer, offset, size);
+        return new MeasurementPartition(header, size, timestamps, values, scales, qualities);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+
+    int size() {
+        return size;
+    }
+
+    long timestamp(int row) {
+        return timestamps.get(row);
+    }
+
+    Measurement get(int row) {
+        return new Measurement(header.formatDateTime(timestamps.get(row)),
+                MeasurementColumns.formatValue(values.get(row), scales.get(row)),
+                header.typeDisplayName, header.locationName, header.catchmentDisplayName,
+                header.qualities.get(qualities.get(row) & 0xFF));
+    }
+
+    /**
+     * Index of the first row at or after the timestamp.
+     */
+    int firstRowFrom(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps.get(middle) < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Copies the whole partition into memory, e.g. to merge new rows into it.
+     */
+    MeasurementColumns load() {
+        MeasurementColumns columns = new MeasurementColumns(size);
+        columns.typeDisplayName = header.typeDisplayName;
+        columns.locationName = header.locationName;
+        columns.catchmentDisplayName = header.catchmentDisplayName;
+        columns.dateTimeFormat = header.dateTimeFormat;
+        for (String quality : header.qualities) {
+            columns.qualityCode(quality);
+        }
+        timestamps.duplicate().get(columns.timestamps, 0, size);
+        values.duplicate().get(columns.values, 0, size);
+        scales.duplicate().get(columns.scales, 0, size);
+        qualities.duplicate().get(columns.qualityColumn, 0, size);
+        columns.size = size;
+        return columns;
+    }
+
+    /**
+     * Replaces the file with the given rows; an empty set of rows deletes it.
+     */
+    static void write(Path file, MeasurementColumns columns) throws IOException {
+        if (columns.size == 0) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeUTF(columns.typeDisplayName);
+        header.writeUTF(columns.locationName);
+        header.writeUTF(columns.catchmentDisplayName);
+        header.writeInt(columns.dateTimeFormat);
+        header.writeInt(columns.qualities.size());
+        for (String quality : columns.qualities) {
+            header.writeUTF(quality);
+        }
+        header.writeInt(columns.size);
+        header.flush();
+
+        Files.createDirectories(file.getParent());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 65536))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(headerBytes.size());
+            headerBytes.writeTo(out);
+            for (int row = 0; row < columns.size; row++) {
+                out.writeLong(columns.timestamps[row]);
+            }
+            for (int row = 0; row < columns.size; row++) {
+                out.writeDouble(columns.values[row]);
+            }
+            out.write(columns.scales, 0, columns.size);
+            out.write(columns.qualityColumn, 0, columns.size);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,461 @@
+package uk.ac.rothamsted.ide;
+
+import com.google.gson.JsonObject;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Local, file-backed copy of the measurements fetched from the NWFP API, so that the measurement services can
+ * answer queries over past dates without going upstream.
+ * <p>
+ * Measurements are kept in one columnar file per measurement type and location (see {@link MeasurementPartition}).
+ * Next to them the store records which date ranges it holds completely, per measurement type and per measurement
+ * type and catchment; a query is answered locally only when its whole range is recorded. Ranges are recorded as
+ * the services fetch them, up to yesterday: the current day is still being measured.
+ * <p>
+ * The API does not say whether a query's end date is included, so a response is only taken to hold the days
+ * before its end date: those are recorded and replaced, and measurements on the end date itself are not stored.
+ * A local read includes the end date and so needs it recorded, e.g. by a later query or by {@link MeasurementSync}.
+ * <p>
+ * The store is off unless the system property nwfp.store.dir names its directory.
+ */
+public final class MeasurementStore {
+
+    private static final Logger log = Logger.getLogger(MeasurementStore.class);
+
+    private static final String DIR = System.getProperty("nwfp.store.dir");
+    private static final String COVERAGE_FILE = "coverage.bin";
+    private static final long DAY_MILLIS = 86400000L;
+    // measurement times are local to the farm platform
+    private static final ZoneId DATA_ZONE = ZoneId.of("Europe/London");
+    private static final long FIRST_DAY = LocalDate.MIN.toEpochDay();
+    private static final long LAST_DAY = LocalDate.MAX.toEpochDay();
+
+    // readers share the files; writers replace them
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private static Map<String, Coverage> coverage;
+
+    private MeasurementStore() {
+    }
+
+    public static boolean isEnabled() {
+        return DIR != null;
+    }
+
+    /**
+     * Passes the measurements of the type (and catchment, when not null) between the two dates to the consumer,
+     * in time order, and returns true; or returns false without passing any when the range is not held locally.
+     */
+    public static boolean read(String typeId, String catchmentName, String startDate, String endDate,
+                               Consumer<Measurement> measurements) {
+        if (!isEnabled()) {
+            return false;
+        }
+        try {
+            long fromDay = LocalDate.parse(startDate).toEpochDay();
+            long toDay = LocalDate.parse(endDate).toEpochDay();
+            boolean held = read(Integer.parseInt(typeId), catchmentName, fromDay, toDay, startMillis(fromDay), endMillis(toDay), measurements);
+            Metrics.cache(Metrics.MEASUREMENT_CACHE).record(held);
+            return held;
+        } catch (DateTimeParseException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Passes every measurement of the type taken before today to the consumer, in time order, and returns true;
+     * or returns false without passing any when the store does not hold the whole history of the type.
+     */
+    public static boolean readHistory(String typeId, Consumer<Measurement> measurements) {
+        if (!isEnabled()) {
+            return false;
+        }
+        try {
+            long yesterday = today().toEpochDay() - 1;
+            boolean held = read(Integer.parseInt(typeId), null, FIRST_DAY, yesterday, Long.MIN_VALUE, endMillis(yesterday), measurements);
+            Metrics.cache(Metrics.MEASUREMENT_CACHE).record(held);
+            return held;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts recording the response to a query of the type (and catchment, when not null) between two dates.
+     * The measurements added to the batch replace those held from the start date up to, but not including, the
+     * end date once it is committed.
+     */
+    public static Batch begin(String typeId, String catchmentName, String startDate, String endDate) {
+        if (!isEnabled()) {
+            return new Batch(0, null, 0, 0, false);
+        }
+        try {
+            long fromDay = LocalDate.parse(startDate).toEpochDay();
+            long toDay = LocalDate.parse(endDate).toEpochDay() - 1;
+            return new Batch(Integer.parseInt(typeId), catchmentName, fromDay, toDay, fromDay <= toDay);
+        } catch (DateTimeParseException | NumberFormatException e) {
+            return new Batch(0, null, 0, 0, false);
+        }
+    }
+
+    /**
+     * Starts recording every measurement of the type, e.g. all pages of getMeasurementsByTypeId.
+     */
+    public static Batch beginHistory(String typeId) {
+        if (!isEnabled()) {
+            return new Batch(0, null, 0, 0, false);
+        }
+        try {
+            return new Batch(Integer.parseInt(typeId), null, FIRST_DAY, LAST_DAY, true);
+        } catch (NumberFormatException e) {
+            return new Batch(0, null, 0, 0, false);
+        }
+    }
+
+    private static boolean read(int typeId, String catchmentName, long fromDay, long toDay, long fromMillis, long toMillis,
+                                Consumer<Measurement> measurements) {
+        lock.readLock().lock();
+        try {
+            Coverage scope = coverage().get(scope(typeId, catchmentName));
+            if (scope == null || !scope.covers(fromDay, toDay)) {
+                return false;
+            }
+            List<Path> files = catchmentName == null ? partitionFiles(typeId) : partitionFiles(typeId, scope.locations);
+            // merge the partitions by time, each one is already in time order
+            PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+            for (Path file : files) {
+                MeasurementPartition partition = MeasurementPartition.open(file);
+                Cursor cursor = new Cursor(partition, partition.firstRowFrom(fromMillis), toMillis);
+                if (cursor.hasRow()) {
+                    cursors.add(cursor);
+                }
+            }
+            long startTime = System.currentTimeMillis();
+            int count = 0;
+            while (!cursors.isEmpty()) {
+                Cursor cursor = cursors.poll();
+                measurements.accept(cursor.partition.get(cursor.row));
+                count++;
+                cursor.row++;
+                if (cursor.hasRow()) {
+                    cursors.add(cursor);
+                }
+            }
+            long endTime = System.currentTimeMillis();
+            log.info("Read " + count + " measurements of type " + typeId + " from " + files.size() + " local partitions in " + (endTime - startTime) + " ms");
+            return true;
+        } catch (IOException e) {
+            log.info("Failed to read the local measurement store: " + e);
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the last day of the range held for the type (and catchment, when not null) that starts on or
+     * before the given day and reaches it, or null if the day is not held.
+     */
+    public static LocalDate heldUntil(String typeId, String catchmentName, LocalDate day) throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            Coverage scope = coverage().get(scope(Integer.parseInt(typeId), catchmentName));
+            Long until = scope == null ? null : scope.until(day.toEpochDay());
+            return until == null ? null : LocalDate.ofEpochDay(until);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static boolean write(Batch batch) throws IOException {
+        lock.writeLock().lock();
+        try {
+            String scopeKey = scope(batch.typeId, batch.catchmentName);
+            Coverage scope = coverage().computeIfAbsent(scopeKey, k -> new Coverage());
+            // the whole range is replaced, including locations that no longer have measurements in it
+            Set<String> locations = new LinkedHashSet<>();
+            if (batch.catchmentName == null) {
+                for (Path file : partitionFiles(batch.typeId)) {
+                    locations.add(MeasurementPartition.locationName(file));
+                }
+            } else {
+                locations.addAll(scope.locations);
+            }
+            locations.addAll(batch.partitions.keySet());
+
+            long fromMillis = startMillis(batch.fromDay);
+            long toMillis = endMillis(batch.toDay);
+            Path typeDirectory = typeDirectory(batch.typeId);
+            boolean merged = true;
+            for (String location : locations) {
+                Path file = MeasurementPartition.file(typeDirectory, location);
+                MeasurementColumns replacement = batch.partitions.getOrDefault(location, new MeasurementColumns(0));
+                MeasurementColumns existing = new MeasurementColumns(0);
+                if (Files.exists(file)) {
+                    MeasurementPartition partition = MeasurementPartition.open(file);
+                    int first = partition.firstRowFrom(fromMillis);
+                    if (replacement.size == 0 && (first == partition.size() || partition.timestamp(first) >= toMillis)) {
+                        // nothing to replace and nothing to add, e.g. a location without new measurements
+                        continue;
+                    }
+                    existing = partition.load();
+                }
+                MeasurementColumns columns = MeasurementColumns.merge(existing, fromMillis, toMillis, replacement);
+                if (columns == null) {
+                    log.info("Cannot merge the measurements of type " + batch.typeId + " at " + location + " into the local store");
+                    merged = false;
+                    continue;
+                }
+                MeasurementPartition.write(file, columns);
+            }
+
+            long coveredTo = Math.min(batch.toDay, today().toEpochDay() - 1);
+            if (merged && batch.fromDay <= coveredTo) {
+                scope.add(batch.fromDay, coveredTo);
+                if (batch.catchmentName != null) {
+                    scope.locations.addAll(batch.partitions.keySet());
+                }
+                saveCoverage();
+            }
+            return merged;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static String scope(int typeId, String catchmentName) {
+        return catchmentName == null ? String.valueOf(typeId) : typeId + "/" + catchmentName;
+    }
+
+    private static Path typeDirectory(int typeId) {
+        return Paths.get(DIR, String.valueOf(typeId));
+    }
+
+    private static List<Path> partitionFiles(int typeId) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Path typeDirectory = typeDirectory(typeId);
+        if (Files.isDirectory(typeDirectory)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(typeDirectory, "*" + MeasurementPartition.EXTENSION)) {
+                for (Path file : stream) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static List<Path> partitionFiles(int typeId, Set<String> locations) {
+        List<Path> files = new ArrayList<>();
+        for (String location : locations) {
+            Path file = MeasurementPartition.file(typeDirectory(typeId), location);
+            if (Files.exists(file)) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * The current date where the measurements are taken.
+     */
+    public static LocalDate today() {
+        return LocalDate.now(DATA_ZONE);
+    }
+
+    private static long startMillis(long day) {
+        return day == FIRST_DAY ? Long.MIN_VALUE : day * DAY_MILLIS;
+    }
+
+    private static long endMillis(long day) {
+        return day == LAST_DAY ? Long.MAX_VALUE : (day + 1) * DAY_MILLIS;
+    }
+
+    private static synchronized Map<String, Coverage> coverage() throws IOException {
+        if (coverage == null) {
+            Map<String, Coverage> loaded = new HashMap<>();
+            Path file = Paths.get(DIR, COVERAGE_FILE);
+            if (Files.exists(file)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                    int scopes = in.readInt();
+                    for (int i = 0; i < scopes; i++) {
+                        Coverage scope = new Coverage();
+                        loaded.put(in.readUTF(), scope);
+                        int ranges = in.readInt();
+                        for (int j = 0; j < ranges; j++) {
+                            scope.ranges.put(in.readLong(), in.readLong());
+                        }
+                        int locations = in.readInt();
+                        for (int j = 0; j < locations; j++) {
+                            scope.locations.add(in.readUTF());
+                        }
+                    }
+                }
+            }
+            coverage = loaded;
+        }
+        return coverage;
+    }
+
+    private static void saveCoverage() throws IOException {
+        Path file = Paths.get(DIR, COVERAGE_FILE);
+        Files.createDirectories(file.getParent());
+        Path temporary = file.resolveSibling(COVERAGE_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(coverage.size());
+            for (Map.Entry<String, Coverage> entry : coverage.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().ranges.size());
+                for (Map.Entry<Long, Long> range : entry.getValue().ranges.entrySet()) {
+                    out.writeLong(range.getKey());
+                    out.writeLong(range.getValue());
+                }
+                out.writeInt(entry.getValue().locations.size());
+                for (String location : entry.getValue().locations) {
+                    out.writeUTF(location);
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Measurements of one query response, recorded while the response is being read and stored on commit.
+     * If any measurement cannot be stored exactly, nothing is stored.
+     */
+    public static final class Batch {
+        private final int typeId;
+        private final String catchmentName;
+        private final long fromDay;
+        private final long toDay;
+        private final Map<String, MeasurementColumns> partitions = new HashMap<>();
+        private boolean storable;
+
+        private Batch(int typeId, String catchmentName, long fromDay, long toDay, boolean storable) {
+            this.typeId = typeId;
+            this.catchmentName = catchmentName;
+            this.fromDay = fromDay;
+            this.toDay = toDay;
+            this.storable = storable;
+        }
+
+        public void add(JsonObject element) {
+            if (storable) {
+                add(Measurement.fromJson(element));
+            }
+        }
+
+        public void add(Measurement measurement) {
+            if (!storable) {
+                return;
+            }
+            MeasurementColumns columns = partitions.computeIfAbsent(measurement.locationName, k -> new MeasurementColumns());
+            if (!columns.add(measurement)) {
+                log.info("Not storing measurements of type " + typeId + " locally, cannot store exactly: "
+                        + measurement.dateTime + " " + measurement.value + " at " + measurement.locationName);
+                storable = false;
+                partitions.clear();
+            }
+        }
+
+        /**
+         * Stores the measurements added so far, returning false if they were not stored.
+         */
+        public boolean commit() {
+            if (!storable) {
+                return false;
+            }
+            storable = false;
+            try {
+                long startTime = System.currentTimeMillis();
+                boolean stored = write(this);
+                long endTime = System.currentTimeMillis();
+                log.info("Stored measurements of type " + typeId + " at " + partitions.size() + " locations locally in " + (endTime - startTime) + " ms");
+                return stored;
+            } catch (IOException e) {
+                log.info("Failed to write the local measurement store: " + e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Day ranges (epoch days, inclusive) held completely for one scope, and for a catchment the locations seen in it.
+     */
+    static final class Coverage {
+        final TreeMap<Long, Long> ranges = new TreeMap<>();
+        final Set<String> locations = new LinkedHashSet<>();
+
+        boolean covers(long fromDay, long toDay) {
+            Map.Entry<Long, Long> range = ranges.floorEntry(fromDay);
+            return range != null && range.getValue() >= toDay;
+        }
+
+        Long until(long day) {
+            Map.Entry<Long, Long> range = ranges.floorEntry(day);
+            return range != null && range.getValue() >= day ? range.getValue() : null;
+        }
+
+        void add(long fromDay, long toDay) {
+            // merge with the ranges it overlaps or touches
+            Map.Entry<Long, Long> before = ranges.floorEntry(fromDay);
+            if (before != null && before.getValue() >= fromDay - 1) {
+                fromDay = before.getKey();
+                toDay = Math.max(toDay, before.getValue());
+            }
+            Map.Entry<Long, Long> next = ranges.ceilingEntry(fromDay);
+            while (next != null && next.getKey() <= toDay + 1) {
+                toDay = Math.max(toDay, next.getValue());
+                ranges.remove(next.getKey());
+                next = ranges.ceilingEntry(fromDay);
+            }
+            ranges.put(fromDay, toDay);
+        }
+    }
+
+    private static final class Cursor implements Comparable<Cursor> {
+        final MeasurementPartition partition;
+        final long toMillis;
+        int row;
+
+        Cursor(MeasurementPartition partition, int row, long toMillis) {
+            this.partition = partition;
+            this.row = row;
+            this.toMillis = toMillis;
+        }
+
+        boolean hasRow() {
+            return row < partition.size() && partition.timestamp(row) < toMillis;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return Long.compare(partition.timestamp(row), other.partition.timestamp(other.row));
+        }
+    }
+}
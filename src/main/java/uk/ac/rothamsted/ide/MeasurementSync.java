@@ -0,0 +1,235 @@
+package uk.ac.rothamsted.ide;
+
+import org.apache.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scheduled job that keeps the local measurement store up to date, so that the measurement services can answer
+ * from it instead of going upstream.
+ * <p>
+ * For each scope listed in nwfp.sync.scopes (comma separated, "typeId" or "typeId/catchmentName") the job
+ * remembers the last day held locally, its high-water mark, and on every run fetches only the days after it:
+ * through getMeasurementsByDateRange for a type, or getMeasurementsByCatchmentName for a type in a catchment.
+ * The first run starts at nwfp.sync.startDate (default 30 days ago). Runs are nwfp.sync.interval minutes apart
+ * (default 60). Progress and lag are published over JMX as uk.ac.rothamsted.ide:type=MeasurementSync, and served
+ * by {@link MetricsServlet}.
+ */
+public final class MeasurementSync implements MeasurementSyncMXBean {
+
+    private static final Logger log = Logger.getLogger(MeasurementSync.class);
+
+    private static final String DATE_RANGE_END_POINT = "https://nwfp.rothamsted.ac.uk:8443/getMeasurementsByDateRange";
+    private static final String CATCHMENT_END_POINT = "https://nwfp.rothamsted.ac.uk:8443/getMeasurementsByCatchmentName";
+    private static final long INTERVAL = Long.getLong("nwfp.sync.interval", 60L);
+    private static final String OBJECT_NAME = "uk.ac.rothamsted.ide:type=MeasurementSync";
+
+    private static MeasurementSync instance;
+
+    private final List<Scope> scopes;
+    private final LocalDate startDate;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "measurement-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastRunMillis;
+
+    private MeasurementSync(List<Scope> scopes, LocalDate startDate) {
+        this.scopes = scopes;
+        this.startDate = startDate;
+    }
+
+    /**
+     * Starts the job if the store is enabled and scopes are configured.
+     */
+    public static synchronized void start() {
+        List<Scope> scopes = parseScopes(System.getProperty("nwfp.sync.scopes", ""));
+        if (instance != null || !MeasurementStore.isEnabled() || scopes.isEmpty()) {
+            return;
+        }
+        LocalDate startDate = MeasurementStore.today().minusDays(30);
+        String configuredStart = System.getProperty("nwfp.sync.startDate");
+        if (configuredStart != null) {
+            try {
+                startDate = LocalDate.parse(configuredStart);
+            } catch (DateTimeParseException e) {
+                log.info("Ignoring nwfp.sync.startDate " + configuredStart + ": " + e.getMessage());
+            }
+        }
+        instance = new MeasurementSync(scopes, startDate);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.info("Failed to register the measurement sync metrics: " + e);
+        }
+        instance.scheduler.scheduleWithFixedDelay(instance::run, 0, INTERVAL, TimeUnit.MINUTES);
+        log.info("Syncing " + scopes.size() + " measurement scopes from " + startDate + " every " + INTERVAL + " minutes");
+    }
+
+    public static synchronized void stop() {
+        if (instance == null) {
+            return;
+        }
+        instance.scheduler.shutdownNow();
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.info("Failed to unregister the measurement sync metrics: " + e);
+        }
+        instance = null;
+    }
+
+    /**
+     * {@link #getLagSeconds()} of the running job, or no scopes when it is not running.
+     */
+    static synchronized Map<String, Long> lagSeconds() {
+        return instance == null ? Collections.emptyMap() : instance.getLagSeconds();
+    }
+
+    /**
+     * {@link #getMeasurementsSynced()} of the running job, or no scopes when it is not running.
+     */
+    static synchronized Map<String, Long> measurementsSynced() {
+        return instance == null ? Collections.emptyMap() : instance.getMeasurementsSynced();
+    }
+
+    private static List<Scope> parseScopes(String value) {
+        List<Scope> scopes = new ArrayList<>();
+        for (String entry : value.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int slash = entry.indexOf('/');
+            String typeId = slash < 0 ? entry : entry.substring(0, slash).trim();
+            String catchmentName = slash < 0 ? null : entry.substring(slash + 1).trim();
+            try {
+                Integer.parseInt(typeId);
+                scopes.add(new Scope(entry, typeId, catchmentName));
+            } catch (NumberFormatException e) {
+                log.info("Ignoring sync scope " + entry + ": not a measurement type id");
+            }
+        }
+        return scopes;
+    }
+
+    private void run() {
+        long startTime = System.currentTimeMillis();
+        for (Scope scope : scopes) {
+            try {
+                sync(scope);
+            } catch (Exception e) {
+                failures.incrementAndGet();
+                log.info("Failed to sync measurements of " + scope.name + ": " + e);
+            }
+        }
+        runs.incrementAndGet();
+        lastRunMillis = System.currentTimeMillis() - startTime;
+    }
+
+    private void sync(Scope scope) throws Exception {
+        LocalDate today = MeasurementStore.today();
+        LocalDate held = MeasurementStore.heldUntil(scope.typeId, scope.catchmentName, startDate);
+        LocalDate from = held == null ? startDate : held.plusDays(1);
+        scope.highWaterMark = held;
+        if (from.isAfter(today.minusDays(1))) {
+            return;
+        }
+        // ask up to today, so that yesterday is complete whether or not the API includes the end date;
+        // the store only records days before today as held
+        MeasurementStore.Batch batch = MeasurementStore.begin(scope.typeId, scope.catchmentName, from.toString(), today.toString());
+        AtomicLong count = new AtomicLong();
+        String endPoint = scope.catchmentName == null ? DATE_RANGE_END_POINT : CATCHMENT_END_POINT;
+        DateRangeShards.fetch(endPoint, from.toString(), today.toString(), (startDate, endDate) -> "{\n" +
+                "    \"startDate\": \"" +startDate+ "\",\n" +
+                "    \"endDate\": \""+endDate+"\",\n" +
+                (scope.catchmentName == null ? "" : "    \"catchmentName\": \""+scope.catchmentName+"\",\n") +
+                "    \"typeId\": "+scope.typeId+"\n" +
+                "}", element -> {
+            batch.add(element);
+            count.incrementAndGet();
+        });
+        if (!batch.commit()) {
+            throw new IllegalStateException("the measurements from " + from + " could not be stored");
+        }
+        scope.measurements.addAndGet(count.get());
+        scope.highWaterMark = MeasurementStore.heldUntil(scope.typeId, scope.catchmentName, startDate);
+        log.info("Synced " + count.get() + " measurements of " + scope.name + " from " + from + ", held until " + scope.highWaterMark);
+    }
+
+    @Override
+    public Map<String, String> getHighWaterMarks() {
+        Map<String, String> marks = new LinkedHashMap<>();
+        for (Scope scope : scopes) {
+            marks.put(scope.name, scope.highWaterMark == null ? "" : scope.highWaterMark.toString());
+        }
+        return marks;
+    }
+
+    @Override
+    public Map<String, Long> getLagSeconds() {
+        Map<String, Long> lag = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        for (Scope scope : scopes) {
+            LocalDate held = scope.highWaterMark == null ? startDate.minusDays(1) : scope.highWaterMark;
+            long heldUntil = held.plusDays(1).atStartOfDay(ZoneId.of("Europe/London")).toInstant().toEpochMilli();
+            lag.put(scope.name, Math.max(0, (now - heldUntil) / 1000));
+        }
+        return lag;
+    }
+
+    @Override
+    public Map<String, Long> getMeasurementsSynced() {
+        Map<String, Long> synced = new LinkedHashMap<>();
+        for (Scope scope : scopes) {
+            synced.put(scope.name, scope.measurements.get());
+        }
+        return synced;
+    }
+
+    @Override
+    public long getRuns() {
+        return runs.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public long getLastRunMillis() {
+        return lastRunMillis;
+    }
+
+    private static final class Scope {
+        final String name;
+        final String typeId;
+        final String catchmentName;
+        final AtomicLong measurements = new AtomicLong();
+        volatile LocalDate highWaterMark;
+
+        Scope(String name, String typeId, String catchmentName) {
+            this.name = name;
+            this.typeId = typeId;
+            this.catchmentName = catchmentName;
+        }
+    }
+}
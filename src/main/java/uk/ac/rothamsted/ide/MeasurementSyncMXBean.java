@@ -0,0 +1,24 @@
+package uk.ac.rothamsted.ide;
+
+import java.util.Map;
+
+/**
+ * Progress of the background measurement sync, per synced scope ("typeId" or "typeId/catchmentName").
+ */
+public interface MeasurementSyncMXBean {
+
+    /** Last day held locally, per scope. */
+    Map<String, String> getHighWaterMarks();
+
+    /** Seconds between the end of the last day held locally and now, per scope. */
+    Map<String, Long> getLagSeconds();
+
+    /** Measurements fetched by the sync since startup, per scope. */
+    Map<String, Long> getMeasurementsSynced();
+
+    long getRuns();
+
+    long getFailures();
+
+    long getLastRunMillis();
+}
@@ -0,0 +1,318 @@
+package uk.ac.rothamsted.ide;
+
+import org.apache.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Counters and latency histograms of the services and of the NWFP API endpoints they call, kept since
+ * startup. They are published over JMX as uk.ac.rothamsted.ide:type=Metrics and served for scraping by
+ * {@link MetricsServlet}.
+ * <p>
+ * Each service (by servlet name) counts its requests, failed requests and the triples it output, with a histogram
+ * of request latencies. A request fails when it ends in an error response, or when the service handles an error
+ * itself and answers with what it has, which it reports with {@link #failed()}; each endpoint counts its failed
+ * calls, with a histogram of the time from connecting to closing the response. Records decoded from upstream JSON,
+ * and hits and misses of the reference list cache and the local measurement store, are counted as well.
+ */
+public final class Metrics implements MetricsMXBean {
+
+    private static final Logger log = Logger.getLogger(Metrics.class);
+
+    private static final String OBJECT_NAME = "uk.ac.rothamsted.ide:type=Metrics";
+
+    static final String REFERENCE_CACHE = "reference";
+    static final String MEASUREMENT_CACHE = "measurements";
+
+    private static final ConcurrentMap<String, Timer> services = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Timer> upstream = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Cache> caches = new ConcurrentHashMap<>();
+    private static final AtomicLong recordsParsed = new AtomicLong();
+    // the request each thread works for, so that a service can report an error it does not throw
+    private static final ThreadLocal<Request> current = new ThreadLocal<>();
+
+    private Metrics() {
+    }
+
+    static Timer service(String name) {
+        return services.computeIfAbsent(name, k -> new Timer());
+    }
+
+    /**
+     * Starts recording a request to the service on this thread; {@link #end(Request, long)} records it.
+     */
+    static Request begin(String service) {
+        Request request = new Request(service(service));
+        current.set(request);
+        return request;
+    }
+
+    /**
+     * Records the latency of the request, and counts it as failed once if anything reported a failure.
+     */
+    static void end(Request request, long nanos) {
+        current.remove();
+        request.timer.record(nanos);
+        if (request.failed.get()) {
+            request.timer.errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Marks the request this thread works for, and its trace, as failed, e.g. where a service logs an error and
+     * carries on.
+     */
+    static void failed() {
+        Request request = current.get();
+        if (request != null) {
+            request.failed();
+        }
+        Trace trace = Trace.current();
+        if (trace != null) {
+            trace.failed();
+        }
+    }
+
+    /**
+     * Runs the call for the request of the calling thread, e.g. on a pool thread.
+     */
+    static <T> Callable<T> wrap(Callable<T> call) {
+        Request request = current.get();
+        if (request == null) {
+            return call;
+        }
+        return () -> {
+            Request previous = current.get();
+            current.set(request);
+            try {
+                return call.call();
+            } finally {
+                if (previous == null) {
+                    current.remove();
+                } else {
+                    current.set(previous);
+                }
+            }
+        };
+    }
+
+    static Timer upstream(String endPoint) {
+        return upstream.computeIfAbsent(endPoint, k -> new Timer());
+    }
+
+    static Cache cache(String name) {
+        return caches.computeIfAbsent(name, k -> new Cache());
+    }
+
+    static void recordsParsed(long records) {
+        recordsParsed.addAndGet(records);
+    }
+
+    static Map<String, Timer> services() {
+        return new TreeMap<>(services);
+    }
+
+    static Map<String, Timer> upstream() {
+        return new TreeMap<>(upstream);
+    }
+
+    static Map<String, Cache> caches() {
+        return new TreeMap<>(caches);
+    }
+
+    static long recordsParsed() {
+        return recordsParsed.get();
+    }
+
+    public static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.info("Failed to register the service metrics: " + e);
+        }
+    }
+
+    public static void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.info("Failed to unregister the service metrics: " + e);
+        }
+    }
+
+    @Override
+    public Map<String, Latency> getServiceLatency() {
+        return latencies(services);
+    }
+
+    @Override
+    public Map<String, Long> getServiceRequests() {
+        return snapshot(services, timer -> timer.calls);
+    }
+
+    @Override
+    public Map<String, Long> getServiceErrors() {
+        return snapshot(services, timer -> timer.errors);
+    }
+
+    @Override
+    public Map<String, Long> getTriplesEmitted() {
+        return snapshot(services, timer -> timer.triples);
+    }
+
+    @Override
+    public Map<String, Latency> getUpstreamLatency() {
+        return latencies(upstream);
+    }
+
+    @Override
+    public Map<String, Long> getUpstreamErrors() {
+        return snapshot(upstream, timer -> timer.errors);
+    }
+
+    @Override
+    public long getRecordsParsed() {
+        return recordsParsed.get();
+    }
+
+    @Override
+    public Map<String, Double> getCacheHitRatio() {
+        Map<String, Double> values = new TreeMap<>();
+        for (Map.Entry<String, Cache> cache : caches.entrySet()) {
+            values.put(cache.getKey(), cache.getValue().hitRatio());
+        }
+        return values;
+    }
+
+    private static Map<String, Long> snapshot(Map<String, Timer> timers, Function<Timer, AtomicLong> counter) {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+            values.put(timer.getKey(), counter.apply(timer.getValue()).get());
+        }
+        return values;
+    }
+
+    private static Map<String, Latency> latencies(Map<String, Timer> timers) {
+        Map<String, Latency> values = new TreeMap<>();
+        for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+            values.put(timer.getKey(), Latency.of(timer.getValue().latency.snapshot()));
+        }
+        return values;
+    }
+
+    /**
+     * Latency histogram and counters of a service or an endpoint.
+     */
+    static final class Timer {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong triples = new AtomicLong();
+
+        void record(long nanos) {
+            calls.incrementAndGet();
+            latency.record(nanos);
+        }
+    }
+
+    /**
+     * A request in progress and whether it failed.
+     */
+    static final class Request {
+        final Timer timer;
+        private final AtomicBoolean failed = new AtomicBoolean();
+
+        private Request(Timer timer) {
+            this.timer = timer;
+        }
+
+        void failed() {
+            failed.set(true);
+        }
+    }
+
+    static final class Cache {
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+
+        void record(boolean hit) {
+            (hit ? hits : misses).incrementAndGet();
+        }
+
+        double hitRatio() {
+            long hitCount = hits.get();
+            long total = hitCount + misses.get();
+            return total == 0 ? 0 : (double) hitCount / total;
+        }
+    }
+
+    /**
+     * Percentiles of a latency histogram in milliseconds, as shown over JMX.
+     */
+    public static final class Latency {
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p90;
+        private final double p99;
+        private final double p999;
+        private final double max;
+
+        @ConstructorProperties({"count", "mean", "p50", "p90", "p99", "p999", "max"})
+        public Latency(long count, double mean, double p50, double p90, double p99, double p999, double max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        static Latency of(LatencyHistogram.Snapshot snapshot) {
+            return new Latency(snapshot.getCount(), snapshot.getMean() / 1000,
+                    snapshot.getPercentile(50) / 1000.0, snapshot.getPercentile(90) / 1000.0,
+                    snapshot.getPercentile(99) / 1000.0, snapshot.getPercentile(99.9) / 1000.0,
+                    snapshot.getMax() / 1000.0);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP90() {
+            return p90;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getP999() {
+            return p999;
+        }
+
+        public double getMax() {
+            return max;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package uk.ac.rothamsted.ide;
+
+import java.util.Map;
+
+/**
+ * Latencies and counters of the services and the NWFP API endpoints since startup.
+ */
+public interface MetricsMXBean {
+
+    /** Request latency percentiles in milliseconds, per service. */
+    Map<String, Metrics.Latency> getServiceLatency();
+
+    /** Requests handled, per service. */
+    Map<String, Long> getServiceRequests();
+
+    /** Requests that failed, per service. */
+    Map<String, Long> getServiceErrors();
+
+    /** Triples output, per service. */
+    Map<String, Long> getTriplesEmitted();
+
+    /** Call latency percentiles in milliseconds, from connecting to closing the response, per endpoint. */
+    Map<String, Metrics.Latency> getUpstreamLatency();
+
+    /** Calls that failed or were refused, per endpoint. */
+    Map<String, Long> getUpstreamErrors();
+
+    /** Records decoded from upstream JSON responses. */
+    long getRecordsParsed();
+
+    /** Share of lookups answered without going upstream, per cache. */
+    Map<String, Double> getCacheHitRatio();
+}
@@ -0,0 +1,97 @@
+package uk.ac.rothamsted.ide;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Serves the {@link Metrics}, the {@link UpstreamTraffic} counters and the progress of the {@link MeasurementSync}
+ * at /metrics in the Prometheus text format, for a scraper or a quick look with curl. Latencies are summaries in
+ * seconds.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = response.getWriter();
+
+        Map<String, Metrics.Timer> services = Metrics.services();
+        summary(out, "nwfp_service_latency_seconds", "Time taken to answer a request", "service", services);
+        counter(out, "nwfp_service_requests_total", "Requests handled", "service", services, timer -> timer.calls.get());
+        counter(out, "nwfp_service_errors_total", "Requests that failed", "service", services, timer -> timer.errors.get());
+        counter(out, "nwfp_service_triples_total", "Triples output", "service", services, timer -> timer.triples.get());
+
+        Map<String, Metrics.Timer> upstream = Metrics.upstream();
+        summary(out, "nwfp_upstream_latency_seconds", "Time from connecting to an NWFP API endpoint to closing its response", "endpoint", upstream);
+        counter(out, "nwfp_upstream_errors_total", "NWFP API calls that failed or were refused", "endpoint", upstream, timer -> timer.errors.get());
+
+        Map<String, UpstreamTraffic.Counters> traffic = UpstreamTraffic.endpoints();
+        counter(out, "nwfp_upstream_responses_total", "NWFP API response bodies read", "endpoint", traffic, counters -> counters.responses.get());
+        counter(out, "nwfp_upstream_wire_bytes_total", "NWFP API body bytes as received", "endpoint", traffic, counters -> counters.wireBytes.get());
+        counter(out, "nwfp_upstream_body_bytes_total", "NWFP API body bytes after decompression", "endpoint", traffic, counters -> counters.bodyBytes.get());
+
+        out.println("# HELP nwfp_records_parsed_total Records decoded from NWFP API responses");
+        out.println("# TYPE nwfp_records_parsed_total counter");
+        out.println("nwfp_records_parsed_total " + Metrics.recordsParsed());
+
+        Map<String, Metrics.Cache> caches = Metrics.caches();
+        counter(out, "nwfp_cache_hits_total", "Lookups answered from a local cache", "cache", caches, cache -> cache.hits.get());
+        counter(out, "nwfp_cache_misses_total", "Lookups that went to the NWFP API", "cache", caches, cache -> cache.misses.get());
+
+        gauge(out, "nwfp_sync_lag_seconds", "Time between the end of the last day held locally and now", "scope",
+                MeasurementSync.lagSeconds(), lag -> lag);
+        counter(out, "nwfp_sync_measurements_total", "Measurements fetched by the background sync", "scope",
+                MeasurementSync.measurementsSynced(), count -> count);
+        out.flush();
+    }
+
+    private static void summary(PrintWriter out, String name, String help, String label, Map<String, Metrics.Timer> timers) {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " summary");
+        for (Map.Entry<String, Metrics.Timer> timer : timers.entrySet()) {
+            String labelValue = escape(timer.getKey());
+            LatencyHistogram.Snapshot snapshot = timer.getValue().latency.snapshot();
+            for (double quantile : QUANTILES) {
+                out.println(name + "{" + label + "=\"" + labelValue + "\",quantile=\"" + quantile + "\"} "
+                        + seconds(snapshot.getPercentile(quantile * 100)));
+            }
+            out.println(name + "_sum{" + label + "=\"" + labelValue + "\"} " + seconds(snapshot.getSum()));
+            out.println(name + "_count{" + label + "=\"" + labelValue + "\"} " + snapshot.getCount());
+        }
+    }
+
+    private static <T> void counter(PrintWriter out, String name, String help, String label, Map<String, T> values,
+                                    Function<T, Long> value) {
+        metric(out, name, help, "counter", label, values, value);
+    }
+
+    private static <T> void gauge(PrintWriter out, String name, String help, String label, Map<String, T> values,
+                                  Function<T, Long> value) {
+        metric(out, name, help, "gauge", label, values, value);
+    }
+
+    private static <T> void metric(PrintWriter out, String name, String help, String type, String label,
+                                   Map<String, T> values, Function<T, Long> value) {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " " + type);
+        for (Map.Entry<String, T> entry : values.entrySet()) {
+            out.println(name + "{" + label + "=\"" + escape(entry.getKey()) + "\"} " + value.apply(entry.getValue()));
+        }
+    }
+
+    private static double seconds(long micros) {
+        return micros / 1e6;
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,120 @@
+package uk.ac.rothamsted.ide;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.shared.JenaException;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the triples of a streamed response as lines of N-Triples, which are also valid Turtle.
+ */
+final class NTriplesResponseGraph extends ResponseGraph {
+
+    private Writer writer;
+
+    NTriplesResponseGraph(HttpServletResponse response, String contentType) {
+        super(response, contentType + "; charset=UTF-8");
+    }
+
+    @Override
+    protected void open(OutputStream out) {
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected void writeTriple(Triple triple) throws IOException {
+        write(triple.getSubject());
+        writer.write(' ');
+        write(triple.getPredicate());
+        writer.write(' ');
+        write(triple.getObject());
+        writer.write(" .\n");
+    }
+
+    @Override
+    protected void flush() throws IOException {
+        writer.flush();
+    }
+
+    private void write(Node node) throws IOException {
+        if (node.isURI()) {
+            writer.write('<');
+            writeEscaped(node.getURI(), true);
+            writer.write('>');
+        } else if (node.isBlank()) {
+            writer.write("_:A");
+            // the escaping of Jena's own N-Triples writer
+            String label = node.getBlankNodeLabel();
+            for (int i = 0; i < label.length(); i++) {
+                char c = label.charAt(i);
+                if (c == 'X') {
+                    writer.write("XX");
+                } else if (Character.isLetterOrDigit(c)) {
+                    writer.write(c);
+                } else {
+                    writer.write("X" + Integer.toHexString(c) + "X");
+                }
+            }
+        } else if (node.isLiteral()) {
+            writer.write('"');
+            writeEscaped(node.getLiteralLexicalForm(), false);
+            writer.write('"');
+            String language = node.getLiteralLanguage();
+            String datatype = node.getLiteralDatatypeURI();
+            if (language != null && !language.isEmpty()) {
+                writer.write('@');
+                writer.write(language);
+            } else if (datatype != null) {
+                writer.write("^^<");
+                writeEscaped(datatype, true);
+                writer.write('>');
+            }
+        } else {
+            throw new JenaException("Cannot write " + node + " as N-Triples");
+        }
+    }
+
+    private void writeEscaped(String value, boolean uri) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (uri) {
+                if (c <= 0x20 || "<>\"{}|^`\\".indexOf(c) >= 0) {
+                    writer.write(String.format("\\u%04X", (int) c));
+                } else {
+                    writer.write(c);
+                }
+                continue;
+            }
+            switch (c) {
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04X", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+    }
+}
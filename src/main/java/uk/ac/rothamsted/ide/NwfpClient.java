@@ -0,0 +1,553 @@
+package uk.ac.rothamsted.ide;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import org.apache.log4j.Logger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Shared client for all calls to the NWFP REST API (https://nwfp.rothamsted.ac.uk:8443).
+ * <p>
+ * Connections are never disconnected explicitly: a response body that is read to the end and closed hands its
+ * socket back to the JDK keep-alive cache, so the next call to the same host skips the TCP and TLS handshakes.
+ * That cache is shared by the whole JVM and keeps at most http.maxConnections idle sockets per host (default 5),
+ * so it is left to the deployment to raise it, e.g. to nwfp.http.maxConnectionsPerEndpoint.
+ * All HTTPS connections share one SSL context, whose client session cache lets new sockets resume TLS sessions.
+ * The number of connections in use is bounded overall and per endpoint; callers wait for a free connection.
+ * At most nwfp.http.maxWaitingPerEndpoint callers (default 16) wait for the same endpoint, further calls fail at
+ * once, so that one slow endpoint cannot hold every servlet thread. Each endpoint also has a {@link CircuitBreaker}
+ * that makes calls fail at once while the endpoint keeps failing.
+ * <p>
+ * Limits can be tuned with the system properties nwfp.http.maxConnections (default 32),
+ * nwfp.http.maxConnectionsPerEndpoint (default 8) and nwfp.http.poolTimeout (milliseconds, default 60000).
+ * Calls without a read timeout of their own use nwfp.http.readTimeout (milliseconds, default 300000, 0 for none).
+ * <p>
+ * Responses are requested gzip or deflate compressed (unless nwfp.http.compression is false) and decompressed
+ * while they are read; the bytes read per endpoint are counted by {@link UpstreamTraffic}. The time from connecting
+ * to closing the response, and the calls that failed or were refused, are recorded per endpoint in {@link Metrics}.
+ */
+public final class NwfpClient {
+
+    private static final Logger log = Logger.getLogger(NwfpClient.class);
+
+    private static final int MAX_CONNECTIONS = Integer.getInteger("nwfp.http.maxConnections", 32);
+    private static final int MAX_CONNECTIONS_PER_ENDPOINT = Integer.getInteger("nwfp.http.maxConnectionsPerEndpoint", 8);
+    private static final long POOL_TIMEOUT = Long.getLong("nwfp.http.poolTimeout", 60000L);
+    private static final int MAX_WAITING_PER_ENDPOINT = Integer.getInteger("nwfp.http.maxWaitingPerEndpoint", 16);
+    private static final int DEFAULT_READ_TIMEOUT = Integer.getInteger("nwfp.http.readTimeout", 300000);
+    private static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("nwfp.http.compression", "true"));
+    private static final int MAX_LOGGED_BODY = Integer.getInteger("nwfp.log.maxBodyChars", 1000);
+    private static final int INFLATER_BUFFER_SIZE = 65536;
+    // set connection timeout to 5 seconds
+    private static final int CONNECT_TIMEOUT = 5000;
+    // result kind of the parsed JSON responses shared by getJson and getJsonAsync, see SingleFlight
+    private static final String JSON = "json";
+    // keep TLS sessions for an hour so that new connections can resume them
+    private static final int TLS_SESSION_TIMEOUT = 3600;
+
+    private static final Semaphore connections = new Semaphore(MAX_CONNECTIONS, true);
+    private static final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private static final SSLSocketFactory sslSocketFactory;
+
+    static {
+        try {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, null);
+            sslContext.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT);
+            sslSocketFactory = sslContext.getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to initialise the TLS context", e);
+        }
+    }
+
+    private NwfpClient() {
+    }
+
+    /**
+     * Sends a GET request to the endpoint. A readTimeout of 0 uses the default read timeout.
+     */
+    public static Response get(String endPoint, int readTimeout) throws IOException {
+        return execute("GET", endPoint, null, readTimeout, Collections.emptyMap(), null);
+    }
+
+    /**
+     * Sends a GET request that another thread may drop through the cancellation, e.g. the slower of two hedged
+     * calls.
+     */
+    static Response get(String endPoint, int readTimeout, Map<String, String> headers, Cancellation cancellation) throws IOException {
+        return execute("GET", endPoint, null, readTimeout, headers, cancellation);
+    }
+
+    /**
+     * Sends a GET request with extra request headers, e.g. the validators of a conditional request.
+     */
+    public static Response get(String endPoint, int readTimeout, Map<String, String> headers) throws IOException {
+        return execute("GET", endPoint, null, readTimeout, headers, null);
+    }
+
+    /**
+     * Sends a POST request with a JSON body to the endpoint. A readTimeout of 0 uses the default read timeout.
+     */
+    public static Response post(String endPoint, String body, int readTimeout) throws IOException {
+        return execute("POST", endPoint, body, readTimeout, Collections.emptyMap(), null);
+    }
+
+    /**
+     * Sends a GET request to the endpoint and parses the JSON response. Identical calls made while one is in
+     * flight share its response, see {@link SingleFlight}; the parsed value must not be modified. Slow calls to
+     * the endpoints chosen for hedging are repeated, see {@link HedgedRequests}.
+     */
+    public static JsonElement getJson(String endPoint, int readTimeout) throws IOException {
+        if (HedgedRequests.isHedged(endPoint)) {
+            return SingleFlight.call("GET", endPoint, null, JSON,
+                    () -> HedgedRequests.call(endPoint, readTimeout, Collections.emptyMap(), upstream -> readJson(endPoint, upstream)));
+        }
+        return SingleFlight.call("GET", endPoint, null, JSON, () -> {
+            try (Response upstream = get(endPoint, readTimeout)) {
+                return readJson(endPoint, upstream);
+            }
+        });
+    }
+
+    /**
+     * Sends a request on the shared upstream pool and hands the response to the handler there, returning at once.
+     * This is not non-blocking I/O: the call blocks a pool thread until its response has been handled, so at most
+     * nwfp.upstream.threads calls are in flight and the others queue. It suits fan-outs that bound their own
+     * concurrency; it is slower than a thread per call when many calls are started at once. Identical calls in
+     * flight at the same time whose handlers make the same kind of result share one response, see
+     * {@link SingleFlight}; calls joining one in flight do not take a pool thread. A null body sends a GET, any
+     * other a POST.
+     */
+    public static <T> CompletableFuture<T> sendAsync(String endPoint, String body, int readTimeout, String kind,
+                                                     ResponseHandler<T> handler) {
+        String method = body == null ? "GET" : "POST";
+        return SingleFlight.callAsync(method, endPoint, body, kind, () -> CompletableFuture.supplyAsync(Trace.wrapSupplier(() -> {
+            try (Response upstream = execute(method, endPoint, body, readTimeout, Collections.emptyMap(), null)) {
+                return handler.handle(upstream);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }), UpstreamExecutor.get()));
+    }
+
+    /**
+     * {@link #getJson(String, int)} on the shared upstream pool, see {@link #sendAsync}.
+     */
+    public static CompletableFuture<JsonElement> getJsonAsync(String endPoint, int readTimeout) {
+        return sendAsync(endPoint, null, readTimeout, JSON, upstream -> readJson(endPoint, upstream));
+    }
+
+    /**
+     * The body cut to at most nwfp.log.maxBodyChars characters (default 1000), for logging.
+     */
+    public static String abbreviate(String body) {
+        if (body == null || body.length() <= MAX_LOGGED_BODY) {
+            return body;
+        }
+        return body.substring(0, MAX_LOGGED_BODY) + "... (" + body.length() + " characters)";
+    }
+
+    private static JsonElement readJson(String endPoint, Response upstream) throws IOException {
+        int status = upstream.getStatus();
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Error executing the GET method at " + endPoint + ". Http Status Code: " + status);
+        }
+        JsonElement body;
+        Trace.Phase previous = Trace.enter(Trace.Phase.JSON_DECODE);
+        try {
+            body = JsonParser.parseReader(upstream.getReader());
+        } finally {
+            Trace.exit(previous);
+        }
+        Metrics.recordsParsed(body.isJsonArray() ? body.getAsJsonArray().size() : 1);
+        return body;
+    }
+
+    private static Response execute(String method, String endPoint, String body, int readTimeout,
+                                    Map<String, String> headers, Cancellation cancellation) throws IOException {
+        Trace.Phase previous = Trace.enter(Trace.Phase.UPSTREAM_CONNECT);
+        try {
+            return connect(method, endPoint, body, readTimeout, headers, cancellation);
+        } finally {
+            Trace.exit(previous);
+        }
+    }
+
+    /**
+     * Waits for a free connection, sends the request and reads the response headers.
+     */
+    private static Response connect(String method, String endPoint, String body, int readTimeout,
+                                    Map<String, String> headers, Cancellation cancellation) throws IOException {
+        Trace trace = Trace.current();
+        long traceStart = System.nanoTime();
+        Endpoint endpoint = endpoints.computeIfAbsent(endPoint, Endpoint::new);
+        if (!endpoint.circuit.allowRequest()) {
+            endpoint.metrics.errors.incrementAndGet();
+            throw new IOException("Not calling " + endPoint + ": its circuit is open after repeated failures");
+        }
+        Semaphore endpointPermits = endpoint.permits;
+        // bulkhead: only a few callers may wait for a busy endpoint
+        if (!endpointPermits.tryAcquire()) {
+            if (endpoint.waiting.incrementAndGet() > MAX_WAITING_PER_ENDPOINT) {
+                endpoint.waiting.decrementAndGet();
+                endpoint.metrics.errors.incrementAndGet();
+                throw new IOException("Not calling " + endPoint + ": " + MAX_WAITING_PER_ENDPOINT + " calls are already waiting for it");
+            }
+            try {
+                acquire(endpointPermits, endPoint);
+            } catch (IOException e) {
+                endpoint.metrics.errors.incrementAndGet();
+                throw e;
+            } finally {
+                endpoint.waiting.decrementAndGet();
+            }
+        }
+        try {
+            acquire(connections, endPoint);
+        } catch (IOException e) {
+            endpoint.metrics.errors.incrementAndGet();
+            endpointPermits.release();
+            throw e;
+        }
+        long startTime = System.nanoTime();
+        HttpURLConnection conn = null;
+        try {
+            URL url = new URL(endPoint);
+            conn = (HttpURLConnection) url.openConnection();
+            if (cancellation != null) {
+                cancellation.opened(conn);
+            }
+            if (conn instanceof HttpsURLConnection) {
+                ((HttpsURLConnection) conn).setSSLSocketFactory(sslSocketFactory);
+            }
+            conn.setRequestMethod(method);
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(readTimeout == 0 ? DEFAULT_READ_TIMEOUT : readTimeout);
+            log.info("Request URL: " + url);
+            if (COMPRESSION) {
+                conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            }
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            }
+            if (body == null) {
+                conn.addRequestProperty("Accept-Language", "en-US,en;q=0.8");
+                conn.addRequestProperty("User-Agent", "Mozilla");
+            } else {
+                conn.setRequestProperty("Content-Type", "application/json");
+                conn.setRequestProperty("User-Agent", "Mozilla/5.0");
+                conn.setDoOutput(true);
+                try (OutputStream os = conn.getOutputStream()) {
+                    byte[] inputToSend = body.getBytes(StandardCharsets.UTF_8);
+                    os.write(inputToSend, 0, inputToSend.length);
+                }
+            }
+            return new Response(conn, conn.getResponseCode(), endpoint, startTime, trace, traceStart, cancellation);
+        } catch (IOException | RuntimeException e) {
+            if (trace != null) {
+                trace.span("upstream", endPoint, traceStart);
+            }
+            endpoint.metrics.record(System.nanoTime() - startTime);
+            // a call dropped by the caller says nothing about the endpoint
+            if (cancellation == null || !cancellation.isCancelled()) {
+                endpoint.circuit.onFailure();
+                endpoint.metrics.errors.incrementAndGet();
+            }
+            if (conn != null) {
+                conn.disconnect();
+            }
+            connections.release();
+            endpointPermits.release();
+            throw e;
+        }
+    }
+
+    private static void acquire(Semaphore permits, String endPoint) throws IOException {
+        try {
+            if (!permits.tryAcquire(POOL_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a free connection to " + endPoint);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a free connection to " + endPoint, e);
+        }
+    }
+
+    private static final class Endpoint {
+        final Semaphore permits = new Semaphore(MAX_CONNECTIONS_PER_ENDPOINT, true);
+        final AtomicInteger waiting = new AtomicInteger();
+        final CircuitBreaker circuit;
+        final UpstreamTraffic.Counters traffic;
+        final Metrics.Timer metrics;
+
+        Endpoint(String endPoint) {
+            circuit = new CircuitBreaker(endPoint);
+            traffic = UpstreamTraffic.of(endPoint);
+            metrics = Metrics.upstream(endPoint);
+        }
+    }
+
+    /**
+     * Lets another thread drop a call in progress by disconnecting its connection, whether the call is still
+     * waiting for the response headers or reading the body. Once the response is closed the connection may be
+     * reused by other calls and is no longer touched.
+     */
+    static final class Cancellation {
+        private HttpURLConnection conn;
+        private boolean cancelled;
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (conn != null) {
+                conn.disconnect();
+                conn = null;
+            }
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        private synchronized void opened(HttpURLConnection conn) throws IOException {
+            if (cancelled) {
+                throw new IOException("Call to " + conn.getURL() + " cancelled");
+            }
+            this.conn = conn;
+        }
+
+        private synchronized void closed() {
+            conn = null;
+        }
+    }
+
+    /**
+     * Reads the result of an asynchronous call from its response.
+     */
+    public interface ResponseHandler<T> {
+        T handle(Response response) throws IOException;
+    }
+
+    /**
+     * Response of an upstream call. Closing it releases the connection: back to the keep-alive cache
+     * when the body could be consumed, or disconnected otherwise.
+     */
+    public static final class Response implements Closeable {
+        private final HttpURLConnection conn;
+        private final int status;
+        private final Endpoint endpoint;
+        private final Semaphore endpointPermits;
+        private final long startTime;
+        private final Trace trace;
+        private final long traceStart;
+        private final Cancellation cancellation;
+        private InputStream body;
+        private boolean aborted;
+        private boolean closed;
+        private volatile boolean readFailed;
+
+        private Response(HttpURLConnection conn, int status, Endpoint endpoint, long startTime, Trace trace, long traceStart,
+                         Cancellation cancellation) {
+            this.conn = conn;
+            this.status = status;
+            this.endpoint = endpoint;
+            this.endpointPermits = endpoint.permits;
+            this.startTime = startTime;
+            this.trace = trace;
+            this.traceStart = traceStart;
+            this.cancellation = cancellation;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * The value of a response header, or null if the response has none.
+         */
+        public String getHeader(String name) {
+            return conn.getHeaderField(name);
+        }
+
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                endpoint.traffic.responses.incrementAndGet();
+                InputStream wire = new CountingStream(conn.getInputStream(), endpoint.traffic.wireBytes, true);
+                body = new CountingStream(decode(wire, conn.getContentEncoding()), endpoint.traffic.bodyBytes, false);
+            }
+            return body;
+        }
+
+        private InputStream decode(InputStream wire, String contentEncoding) throws IOException {
+            if ("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+                return new GZIPInputStream(wire, INFLATER_BUFFER_SIZE);
+            }
+            if ("deflate".equalsIgnoreCase(contentEncoding)) {
+                // deflate is meant to be zlib wrapped, but some servers send raw deflate data
+                BufferedInputStream buffered = new BufferedInputStream(wire, INFLATER_BUFFER_SIZE);
+                buffered.mark(2);
+                int cmf = buffered.read();
+                int flg = buffered.read();
+                buffered.reset();
+                boolean zlib = (cmf & 0x0F) == 8 && flg >= 0 && ((cmf << 8) | flg) % 31 == 0;
+                Inflater inflater = new Inflater(!zlib);
+                return new InflaterInputStream(buffered, inflater, INFLATER_BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            // an inflater passed in is not released by the stream itself
+                            inflater.end();
+                        }
+                    }
+                };
+            }
+            return wire;
+        }
+
+        public BufferedReader getReader() throws IOException {
+            return new BufferedReader(new InputStreamReader(getBody(), StandardCharsets.UTF_8));
+        }
+
+        public String readBody() throws IOException {
+            BufferedReader in = getReader();
+            String inputLine;
+            StringBuilder response = new StringBuilder();
+            while ((inputLine = in.readLine()) != null) {
+                response.append(inputLine);
+            }
+            return response.toString();
+        }
+
+        /**
+         * Drops the connection without reading the rest of the body, e.g. once the record that was looked for
+         * has been found. The connection cannot be reused afterwards.
+         */
+        public void abort() {
+            aborted = true;
+            conn.disconnect();
+        }
+
+        /**
+         * Counts the bytes read through it and notes read failures; the time spent reading the wire is traced
+         * as the upstream transfer.
+         */
+        private final class CountingStream extends FilterInputStream {
+            private final AtomicLong bytes;
+            private final boolean wire;
+
+            CountingStream(InputStream in, AtomicLong bytes, boolean wire) {
+                super(in);
+                this.bytes = bytes;
+                this.wire = wire;
+            }
+
+            @Override
+            public int read() throws IOException {
+                Trace.Phase previous = wire ? Trace.enter(Trace.Phase.UPSTREAM_TRANSFER) : null;
+                try {
+                    int b = super.read();
+                    if (b >= 0) {
+                        bytes.incrementAndGet();
+                    }
+                    return b;
+                } catch (IOException e) {
+                    readFailed = true;
+                    throw e;
+                } finally {
+                    Trace.exit(previous);
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                Trace.Phase previous = wire ? Trace.enter(Trace.Phase.UPSTREAM_TRANSFER) : null;
+                try {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        bytes.addAndGet(n);
+                    }
+                    return n;
+                } catch (IOException e) {
+                    readFailed = true;
+                    throw e;
+                } finally {
+                    Trace.exit(previous);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (cancellation != null) {
+                cancellation.closed();
+                if (cancellation.isCancelled()) {
+                    aborted = true;
+                }
+            }
+            endpoint.metrics.record(System.nanoTime() - startTime);
+            if (trace != null) {
+                trace.span("upstream", conn.getURL().toString(), traceStart);
+            }
+            // server errors and responses that broke off count against the endpoint
+            if (status >= HttpURLConnection.HTTP_INTERNAL_ERROR || readFailed && !aborted) {
+                endpoint.circuit.onFailure();
+                endpoint.metrics.errors.incrementAndGet();
+            } else {
+                endpoint.circuit.onSuccess();
+            }
+            if (aborted) {
+                connections.release();
+                endpointPermits.release();
+                return;
+            }
+            try {
+                // closing the stream (rather than disconnecting) lets the JDK reuse the socket
+                InputStream stream = body;
+                if (stream == null) {
+                    stream = status < HttpURLConnection.HTTP_BAD_REQUEST ? conn.getInputStream() : conn.getErrorStream();
+                }
+                if (stream != null) {
+                    stream.close();
+                }
+            } catch (IOException e) {
+                conn.disconnect();
+            } finally {
+                connections.release();
+                endpointPermits.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package uk.ac.rothamsted.ide;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import org.apache.log4j.Logger;
+import org.sadiframework.service.ServiceCall;
+import org.sadiframework.service.simple.SimpleSynchronousServiceServlet;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Synchronous SADI service that processes the inputs of a request concurrently.
+ * <p>
+ * A request with several input instances has them processed on a shared pool of nwfp.batch.threads threads
+ * (default 8; 1 processes them one after another as before). Each input writes to a model of its own, since
+ * Jena models are not safe for concurrent writes, and these are added to the response model on the request
+ * thread in input order. Inputs that need the same reference list wait for one load of it in
+ * {@link ReferenceDataStore}, though the first of them may scan the list while it loads, and identical upstream
+ * calls in flight at the same time share one response through {@link SingleFlight}.
+ * <p>
+ * The latency, failures and output triples of each request are recorded in {@link Metrics} under the servlet
+ * name, and the time spent in each phase of the request in a {@link Trace}.
+ */
+public abstract class ParallelSynchronousServiceServlet extends SimpleSynchronousServiceServlet {
+
+    private static final Logger log = Logger.getLogger(ParallelSynchronousServiceServlet.class);
+
+    private static final int THREADS = Integer.getInteger("nwfp.batch.threads", 8);
+
+    private static final ExecutorService workers;
+
+    static {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "nwfp-batch-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        workers = executor;
+    }
+
+    /**
+     * Stops the pool. Called when the application stops, after the servlets have finished their requests.
+     */
+    public static void shutdown() {
+        workers.shutdownNow();
+    }
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        Metrics.Request metrics = Metrics.begin(getServletName());
+        Trace trace = Trace.begin(getServletName());
+        long startTime = System.nanoTime();
+        try {
+            super.doPost(request, response);
+        } catch (ServletException | IOException | RuntimeException e) {
+            metrics.failed();
+            if (trace != null) {
+                trace.failed();
+            }
+            throw e;
+        } finally {
+            Metrics.end(metrics, System.nanoTime() - startTime);
+            Trace.end(trace);
+        }
+    }
+
+    @Override
+    protected Model readInput(HttpServletRequest request) throws IOException {
+        Trace trace = Trace.current();
+        long startTime = System.nanoTime();
+        Trace.Phase previous = Trace.enter(Trace.Phase.PARSE_INPUT);
+        try {
+            return super.readInput(request);
+        } finally {
+            Trace.exit(previous);
+            if (trace != null) {
+                trace.span("parseInput", null, startTime);
+            }
+        }
+    }
+
+    @Override
+    protected void outputSuccessResponse(HttpServletResponse response, Model outputModel) throws IOException {
+        Metrics.service(getServletName()).triples.addAndGet(outputModel.size());
+        Trace trace = Trace.current();
+        long startTime = System.nanoTime();
+        Trace.Phase previous = Trace.enter(Trace.Phase.SERIALIZE);
+        try {
+            super.outputSuccessResponse(response, outputModel);
+        } finally {
+            Trace.exit(previous);
+            if (trace != null) {
+                trace.span("serialize", null, startTime);
+            }
+        }
+    }
+
+    @Override
+    protected void outputErrorResponse(HttpServletResponse response, Throwable error) throws IOException {
+        Metrics.failed();
+        Trace trace = Trace.current();
+        if (trace != null) {
+            trace.failed();
+        }
+        super.outputErrorResponse(response, error);
+    }
+
+    @Override
+    protected void processInput(ServiceCall call) throws Exception {
+        Collection<Resource> inputs = call.getInputNodes();
+        if (inputs.size() < 2 || THREADS < 2) {
+            super.processInput(call);
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        List<Future<Model>> outputs = new ArrayList<>(inputs.size());
+        try {
+            for (Resource input : inputs) {
+                outputs.add(workers.submit(Metrics.wrap(Trace.wrap(() -> {
+                    Model outputModel = ModelFactory.createDefaultModel();
+                    // the same node, so that blank node inputs keep their identity in the output
+                    processInput(input, outputModel.wrapAsResource(input.asNode()));
+                    return outputModel;
+                }))));
+            }
+            Model outputModel = call.getOutputModel();
+            for (Future<Model> output : outputs) {
+                Model inputOutputModel = output.get();
+                outputModel.add(inputOutputModel);
+                inputOutputModel.close();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            for (Future<Model> output : outputs) {
+                output.cancel(true);
+            }
+        }
+        long endTime = System.currentTimeMillis();
+        log.info("Processed " + inputs.size() + " inputs in " + (endTime - startTime) + " ms");
+    }
+}
@@ -0,0 +1,484 @@
+package uk.ac.rothamsted.ide;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shared in-process store of the NWFP reference lists (fields, catchments, field events, ...).
+ * Each list is downloaded once per endpoint and kept, so the All* services list it without going upstream,
+ * and indexed by its "Id" member, so the Get*Info services answer single-id lookups without scanning it.
+ * <p>
+ * While a list is not held yet, the lookup that finds it missing does not wait for the whole download: the list
+ * is loaded in the background and that caller scans the list only up to the requested id, then drops the
+ * connection. Lookups made while the load is in flight wait for it, so a cold list is downloaded at most twice
+ * however many lookups arrive at once. Set the system property nwfp.reference.scanOnColdCache to false to have
+ * the first lookup wait for the list as well.
+ * <p>
+ * The lists are also written to a {@link ReferenceSnapshot}, which is read back at startup; lists from the
+ * snapshot are served straight away and revalidated in the background. Revalidation is a conditional request
+ * when upstream sent an ETag or Last-Modified header; otherwise a list whose content hash has not changed
+ * keeps its parsed form and index.
+ * <p>
+ * Each endpoint has a time to live, nwfp.reference.ttl.&lt;path&gt; in seconds (e.g. nwfp.reference.ttl.getFields),
+ * falling back to nwfp.reference.ttl (default one hour). A list older than that is still served at once while one
+ * background refresh replaces it; only a list more than nwfp.reference.maxStale seconds (default one day) past its
+ * time to live makes a caller wait for upstream, and even then the old list is served if upstream fails.
+ * At most nwfp.reference.maxEntries lists (default 32) are held; the least recently used one is dropped first.
+ */
+public final class ReferenceDataStore {
+
+    private static final Logger log = Logger.getLogger(ReferenceDataStore.class);
+
+    private static final boolean SCAN_ON_COLD_CACHE = Boolean.parseBoolean(System.getProperty("nwfp.reference.scanOnColdCache", "true"));
+    private static final long DEFAULT_TTL = Long.getLong("nwfp.reference.ttl", 3600L) * 1000;
+    private static final long MAX_STALE = Long.getLong("nwfp.reference.maxStale", 86400L) * 1000;
+    private static final int MAX_ENTRIES = Integer.getInteger("nwfp.reference.maxEntries", 32);
+
+    // one load per endpoint; concurrent callers wait on the same task instead of downloading again
+    private static final ConcurrentMap<String, FutureTask<Entry>> entries = new ConcurrentHashMap<>();
+    // runs the loads started by lookups on a cold cache and the revalidation of snapshot entries
+    private static final ExecutorService loader = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "reference-data-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ReferenceDataStore() {
+    }
+
+    /**
+     * Returns the whole response of the endpoint, e.g. the JSON array of all fields.
+     */
+    public static JsonElement list(String endPoint) throws IOException {
+        return entry(endPoint).body;
+    }
+
+    /**
+     * Returns the record of the list served at the given endpoint whose "Id" equals the given id,
+     * or null if there is no such record.
+     */
+    public static JsonObject lookup(String endPoint, int id) throws IOException {
+        // only the lookup that starts the load scans, the others wait for the load
+        if (SCAN_ON_COLD_CACHE && !entries.containsKey(endPoint) && loadInBackground(endPoint)) {
+            Metrics.cache(Metrics.REFERENCE_CACHE).record(false);
+            return scan(endPoint, id);
+        }
+        return entry(endPoint).index().get(id);
+    }
+
+    /**
+     * Stops the background loads and refreshes. Called when the application stops.
+     */
+    public static void shutdown() {
+        loader.shutdownNow();
+    }
+
+    /**
+     * Serves the lists of the snapshot left by the previous deployment and revalidates them in the background.
+     * Called once when the application starts.
+     */
+    public static void warmStart() {
+        for (Map.Entry<String, Entry> snapshotEntry : ReferenceSnapshot.load().entrySet()) {
+            String endPoint = snapshotEntry.getKey();
+            if (entries.putIfAbsent(endPoint, completed(snapshotEntry.getValue())) == null) {
+                log.info("Serving " + endPoint + " from the snapshot fetched at " + new Date(snapshotEntry.getValue().fetchedAt));
+                refreshInBackground(endPoint, snapshotEntry.getValue());
+            }
+        }
+        evictIfFull();
+    }
+
+    private static void refreshInBackground(String endPoint, Entry entry) {
+        // one refresh per list at a time
+        if (entry.refreshing.compareAndSet(false, true)) {
+            loader.execute(() -> refresh(endPoint, entry));
+        }
+    }
+
+    private static Entry refresh(String endPoint, Entry entry) {
+        try {
+            Entry refreshed = load(endPoint, entry);
+            entries.put(endPoint, completed(refreshed));
+            saveSnapshot();
+            return refreshed;
+        } catch (IOException e) {
+            // keep serving the list we have
+            log.info("Failed to revalidate reference data from " + endPoint + ": " + e);
+            entry.refreshing.set(false);
+            return entry;
+        }
+    }
+
+    /**
+     * Starts loading the list unless a load of it is held or in flight; returns whether it was started.
+     */
+    private static boolean loadInBackground(String endPoint) {
+        FutureTask<Entry> newTask = new FutureTask<>(() -> load(endPoint, null));
+        if (entries.putIfAbsent(endPoint, newTask) != null) {
+            return false;
+        }
+        loader.execute(() -> {
+            newTask.run();
+            try {
+                newTask.get();
+                saveSnapshot();
+            } catch (InterruptedException | ExecutionException e) {
+                // forget the failed load so that the next lookup starts it again
+                entries.remove(endPoint, newTask);
+                log.info("Failed to load reference data from " + endPoint + ": " + e);
+            }
+        });
+        return true;
+    }
+
+    private static JsonObject scan(String endPoint, int id) throws IOException {
+        long startTime = System.currentTimeMillis();
+        try (NwfpClient.Response upstream = NwfpClient.get(endPoint, 0)) {
+            int status = upstream.getStatus();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Error executing the GET method at " + endPoint + ". Http Status Code: " + status);
+            }
+            JsonObject element = JsonStreams.findById(upstream.getReader(), "Id", id);
+            if (element != null) {
+                // the rest of the list is not needed
+                upstream.abort();
+            }
+            long endTime = System.currentTimeMillis();
+            log.info("Scanned " + endPoint + " for Id " + id + " in " + (endTime - startTime) + " ms");
+            return element;
+        }
+    }
+
+    private static Entry entry(String endPoint) throws IOException {
+        FutureTask<Entry> task = entries.get(endPoint);
+        Metrics.Cache cache = Metrics.cache(Metrics.REFERENCE_CACHE);
+        boolean held = task != null && task.isDone();
+        if (task == null) {
+            FutureTask<Entry> newTask = new FutureTask<>(() -> load(endPoint, null));
+            task = entries.putIfAbsent(endPoint, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+                evictIfFull();
+                loader.execute(ReferenceDataStore::saveSnapshot);
+            }
+        }
+        Entry entry = await(endPoint, task);
+        long now = System.currentTimeMillis();
+        entry.lastUsed = now;
+        long ttl = ttl(endPoint);
+        if (now - entry.fetchedAt > ttl) {
+            if (now - entry.fetchedAt > ttl + MAX_STALE && entry.refreshing.compareAndSet(false, true)) {
+                // too old to serve without asking upstream first
+                cache.record(false);
+                return refresh(endPoint, entry);
+            }
+            refreshInBackground(endPoint, entry);
+        }
+        cache.record(held);
+        return entry;
+    }
+
+    private static Entry await(String endPoint, FutureTask<Entry> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + endPoint, e);
+        } catch (ExecutionException e) {
+            // forget the failed load so that the next call retries it
+            entries.remove(endPoint, task);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to load " + endPoint, cause);
+        }
+    }
+
+    private static long ttl(String endPoint) {
+        String path = endPoint.substring(endPoint.lastIndexOf('/') + 1);
+        Long seconds = Long.getLong("nwfp.reference.ttl." + path);
+        return seconds == null ? DEFAULT_TTL : seconds * 1000;
+    }
+
+    private static void evictIfFull() {
+        while (entries.size() > MAX_ENTRIES) {
+            String leastRecentlyUsed = null;
+            long oldest = Long.MAX_VALUE;
+            for (Map.Entry<String, FutureTask<Entry>> task : entries.entrySet()) {
+                Entry entry = done(task.getValue());
+                if (entry != null && entry.lastUsed < oldest) {
+                    oldest = entry.lastUsed;
+                    leastRecentlyUsed = task.getKey();
+                }
+            }
+            if (leastRecentlyUsed == null) {
+                return;
+            }
+            entries.remove(leastRecentlyUsed);
+            log.info("Dropped reference data of " + leastRecentlyUsed + " to keep at most " + MAX_ENTRIES + " lists");
+        }
+    }
+
+    /**
+     * Loads the list, or revalidates the previous entry if there is one: upstream is asked to answer 304 if
+     * the list has not changed since, and a list that comes back unchanged all the same keeps the parsed list
+     * and index of the previous entry.
+     */
+    private static Entry load(String endPoint, Entry previous) throws IOException {
+        long startTime = System.currentTimeMillis();
+        log.info("Loading reference data from: " + endPoint);
+        Map<String, String> validators = new HashMap<>();
+        if (previous != null && previous.etag != null) {
+            validators.put("If-None-Match", previous.etag);
+        }
+        if (previous != null && previous.lastModified != null) {
+            validators.put("If-Modified-Since", previous.lastModified);
+        }
+        Entry entry;
+        if (HedgedRequests.isHedged(endPoint)) {
+            entry = HedgedRequests.call(endPoint, 0, validators, upstream -> read(endPoint, previous, upstream));
+        } else {
+            try (NwfpClient.Response upstream = NwfpClient.get(endPoint, 0, validators)) {
+                entry = read(endPoint, previous, upstream);
+            }
+        }
+        long endTime = System.currentTimeMillis();
+        log.info("Loaded reference data from " + endPoint + " in " + (endTime - startTime) + " ms");
+        return entry;
+    }
+
+    private static Entry read(String endPoint, Entry previous, NwfpClient.Response upstream) throws IOException {
+        int status = upstream.getStatus();
+        String etag = upstream.getHeader("ETag");
+        String lastModified = upstream.getHeader("Last-Modified");
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+            log.info("Reference data from " + endPoint + " is unchanged");
+            return previous.revalidated(etag == null ? previous.etag : etag, lastModified == null ? previous.lastModified : lastModified, previous.contentHash);
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Error executing the GET method at " + endPoint + ". Http Status Code: " + status);
+        }
+        // hash the body while it is parsed rather than holding a copy of it
+        DigestInputStream content = new DigestInputStream(upstream.getBody(), sha256());
+        JsonElement body;
+        Trace.Phase phase = Trace.enter(Trace.Phase.JSON_DECODE);
+        try {
+            body = JsonParser.parseReader(new InputStreamReader(content, StandardCharsets.UTF_8));
+        } finally {
+            Trace.exit(phase);
+        }
+        Metrics.recordsParsed(body.isJsonArray() ? body.getAsJsonArray().size() : 1);
+        // the parser may stop before trailing whitespace, which is part of the hash
+        drain(content);
+        byte[] contentHash = content.getMessageDigest().digest();
+        if (previous != null && Arrays.equals(contentHash, previous.contentHash)) {
+            // drop the new parse and keep the list and index already held
+            log.info("Reference data from " + endPoint + " has not changed, keeping its index");
+            return previous.revalidated(etag, lastModified, contentHash);
+        }
+        // an empty body lists nothing
+        if (body.isJsonNull()) {
+            body = new JsonArray();
+        }
+        return new Entry(body, System.currentTimeMillis(), etag, lastModified, contentHash);
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+            // discard
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static void saveSnapshot() {
+        Map<String, Entry> loaded = new LinkedHashMap<>();
+        for (Map.Entry<String, FutureTask<Entry>> task : entries.entrySet()) {
+            Entry entry = done(task.getValue());
+            if (entry != null) {
+                loaded.put(task.getKey(), entry);
+            }
+        }
+        ReferenceSnapshot.save(loaded);
+    }
+
+    /**
+     * The entry of a finished load, or null while it is loading or if it failed.
+     */
+    private static Entry done(FutureTask<Entry> task) {
+        if (!task.isDone()) {
+            return null;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static FutureTask<Entry> completed(Entry entry) {
+        FutureTask<Entry> task = new FutureTask<>(() -> entry);
+        task.run();
+        return task;
+    }
+
+    /**
+     * A reference list as fetched, with the time it was fetched, the validators and hash of the response it came
+     * from (each may be null), and its index by "Id", built on first use.
+     */
+    static final class Entry {
+        final JsonElement body;
+        final long fetchedAt;
+        final String etag;
+        final String lastModified;
+        final byte[] contentHash;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        volatile long lastUsed;
+        private volatile IdIndex index;
+
+        Entry(JsonElement body, long fetchedAt, String etag, String lastModified, byte[] contentHash) {
+            this.body = body;
+            this.fetchedAt = fetchedAt;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * The same list, fetched now, keeping its index.
+         */
+        Entry revalidated(String etag, String lastModified, byte[] contentHash) {
+            Entry entry = new Entry(body, System.currentTimeMillis(), etag, lastModified, contentHash);
+            entry.index = index;
+            return entry;
+        }
+
+        IdIndex index() {
+            IdIndex result = index;
+            if (result == null) {
+                synchronized (this) {
+                    result = index;
+                    if (result == null) {
+                        result = new IdIndex(body.isJsonArray() ? body.getAsJsonArray().size() : 0);
+                        if (body.isJsonArray()) {
+                            for (JsonElement element : body.getAsJsonArray()) {
+                                JsonElement id = element.isJsonObject() ? element.getAsJsonObject().get("Id") : null;
+                                if (id != null && !id.isJsonNull()) {
+                                    result.put(id.getAsInt(), element.getAsJsonObject());
+                                }
+                            }
+                        }
+                        index = result;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Open-addressing map from primitive int ids to records. Written only by the thread that builds it,
+     * then only read, so it needs no locking once published.
+     */
+    static final class IdIndex {
+        private int[] keys;
+        private JsonObject[] values;
+        private int mask;
+        private int size;
+
+        IdIndex(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1) << 1;
+            keys = new int[capacity];
+            values = new JsonObject[capacity];
+            mask = capacity - 1;
+        }
+
+        void put(int key, JsonObject value) {
+            int slot = slot(key);
+            while (values[slot] != null && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            // the first record listed for a duplicated id wins
+            if (values[slot] == null) {
+                keys[slot] = key;
+                values[slot] = value;
+                // keep the table at most half full
+                if (++size * 2 > keys.length) {
+                    grow();
+                }
+            }
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            JsonObject[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new JsonObject[oldValues.length * 2];
+            mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    int slot = slot(oldKeys[i]);
+                    while (values[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        JsonObject get(int key) {
+            int slot = slot(key);
+            while (values[slot] != null) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private int slot(int key) {
+            int h = key * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+}
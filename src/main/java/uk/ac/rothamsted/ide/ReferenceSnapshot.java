@@ -0,0 +1,250 @@
+package uk.ac.rothamsted.ide;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.internal.LazilyParsedNumber;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of the reference lists held by {@link ReferenceDataStore}, so that a redeployed application
+ * starts with the lists it had instead of downloading them again.
+ * <p>
+ * Each entry holds the endpoint, the time its list was fetched, the validators and content hash of the response
+ * it came from, and the list in a compact binary form of JSON:
+ * the member names of an entry are written once in a dictionary and referred to by number, numbers are kept as
+ * written. The file is memory-mapped for reading and replaced as a whole when written. It is kept at the path
+ * given by the system property nwfp.reference.snapshot (default nwfp-reference-data.snapshot in java.io.tmpdir);
+ * an empty value turns the snapshot off.
+ */
+final class ReferenceSnapshot {
+
+    private static final Logger log = Logger.getLogger(ReferenceSnapshot.class);
+
+    private static final String FILE = System.getProperty("nwfp.reference.snapshot",
+            Paths.get(System.getProperty("java.io.tmpdir"), "nwfp-reference-data.snapshot").toString());
+    private static final int MAGIC = 0x4E575253;
+    private static final int VERSION = 2;
+    // version 1 snapshots have no validators and content hash
+    private static final int VERSION_WITHOUT_VALIDATORS = 1;
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+    private static final byte ARRAY = 5;
+    private static final byte OBJECT = 6;
+
+    private ReferenceSnapshot() {
+    }
+
+    /**
+     * Reads the snapshot, or returns no entries if there is none or it cannot be read.
+     */
+    static Map<String, ReferenceDataStore.Entry> load() {
+        Map<String, ReferenceDataStore.Entry> entries = new LinkedHashMap<>();
+        if (FILE.isEmpty() || !Files.exists(Paths.get(FILE))) {
+            return entries;
+        }
+        long startTime = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(Paths.get(FILE), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int version = buffer.getInt() == MAGIC ? buffer.getInt() : -1;
+            if (version != VERSION && version != VERSION_WITHOUT_VALIDATORS) {
+                log.info("Ignoring reference data snapshot " + FILE + ": unknown format");
+                return entries;
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String endPoint = readString(buffer);
+                long fetchedAt = buffer.getLong();
+                String etag = null;
+                String lastModified = null;
+                byte[] contentHash = null;
+                if (version == VERSION) {
+                    etag = readOptionalString(buffer);
+                    lastModified = readOptionalString(buffer);
+                    int hashLength = buffer.getInt();
+                    if (hashLength >= 0) {
+                        contentHash = new byte[hashLength];
+                        buffer.get(contentHash);
+                    }
+                }
+                String[] names = new String[buffer.getInt()];
+                for (int j = 0; j < names.length; j++) {
+                    names[j] = readString(buffer);
+                }
+                entries.put(endPoint, new ReferenceDataStore.Entry(read(buffer, names), fetchedAt, etag, lastModified, contentHash));
+            }
+        } catch (IOException | RuntimeException e) {
+            log.info("Ignoring reference data snapshot " + FILE + ": " + e);
+            entries.clear();
+            return entries;
+        }
+        long endTime = System.currentTimeMillis();
+        log.info("Loaded " + entries.size() + " reference lists from " + FILE + " in " + (endTime - startTime) + " ms");
+        return entries;
+    }
+
+    /**
+     * Replaces the snapshot with the given entries.
+     */
+    static synchronized void save(Map<String, ReferenceDataStore.Entry> entries) {
+        if (FILE.isEmpty()) {
+            return;
+        }
+        Path file = Paths.get(FILE);
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 65536))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, ReferenceDataStore.Entry> entry : entries.entrySet()) {
+                    writeString(out, entry.getKey());
+                    out.writeLong(entry.getValue().fetchedAt);
+                    writeOptionalString(out, entry.getValue().etag);
+                    writeOptionalString(out, entry.getValue().lastModified);
+                    byte[] contentHash = entry.getValue().contentHash;
+                    out.writeInt(contentHash == null ? -1 : contentHash.length);
+                    if (contentHash != null) {
+                        out.write(contentHash);
+                    }
+                    Map<String, Integer> names = new HashMap<>();
+                    List<String> nameList = new ArrayList<>();
+                    collectNames(entry.getValue().body, names, nameList);
+                    out.writeInt(nameList.size());
+                    for (String name : nameList) {
+                        writeString(out, name);
+                    }
+                    write(out, entry.getValue().body, names);
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.info("Failed to write reference data snapshot " + FILE + ": " + e);
+        }
+    }
+
+    private static void collectNames(JsonElement element, Map<String, Integer> names, List<String> nameList) {
+        if (element.isJsonArray()) {
+            for (JsonElement item : element.getAsJsonArray()) {
+                collectNames(item, names, nameList);
+            }
+        } else if (element.isJsonObject()) {
+            for (Map.Entry<String, JsonElement> member : element.getAsJsonObject().entrySet()) {
+                if (!names.containsKey(member.getKey())) {
+                    names.put(member.getKey(), nameList.size());
+                    nameList.add(member.getKey());
+                }
+                collectNames(member.getValue(), names, nameList);
+            }
+        }
+    }
+
+    private static void write(DataOutputStream out, JsonElement element, Map<String, Integer> names) throws IOException {
+        if (element.isJsonNull()) {
+            out.writeByte(NULL);
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            out.writeByte(ARRAY);
+            out.writeInt(array.size());
+            for (JsonElement item : array) {
+                write(out, item, names);
+            }
+        } else if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            out.writeByte(OBJECT);
+            out.writeInt(object.size());
+            for (Map.Entry<String, JsonElement> member : object.entrySet()) {
+                out.writeInt(names.get(member.getKey()));
+                write(out, member.getValue(), names);
+            }
+        } else {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                out.writeByte(primitive.getAsBoolean() ? TRUE : FALSE);
+            } else {
+                out.writeByte(primitive.isNumber() ? NUMBER : STRING);
+                writeString(out, primitive.getAsString());
+            }
+        }
+    }
+
+    private static JsonElement read(ByteBuffer buffer, String[] names) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case NULL:
+                return JsonNull.INSTANCE;
+            case TRUE:
+                return new JsonPrimitive(true);
+            case FALSE:
+                return new JsonPrimitive(false);
+            case NUMBER:
+                return new JsonPrimitive(new LazilyParsedNumber(readString(buffer)));
+            case STRING:
+                return new JsonPrimitive(readString(buffer));
+            case ARRAY:
+                int size = buffer.getInt();
+                JsonArray array = new JsonArray(size);
+                for (int i = 0; i < size; i++) {
+                    array.add(read(buffer, names));
+                }
+                return array;
+            case OBJECT:
+                int members = buffer.getInt();
+                JsonObject object = new JsonObject();
+                for (int i = 0; i < members; i++) {
+                    String name = names[buffer.getInt()];
+                    object.add(name, read(buffer, names));
+                }
+                return object;
+            default:
+                throw new IllegalStateException("Unknown value tag " + tag);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeOptionalString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeString(out, value);
+        }
+    }
+
+    private static String readOptionalString(ByteBuffer buffer) {
+        return buffer.get() != 0 ? readString(buffer) : null;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
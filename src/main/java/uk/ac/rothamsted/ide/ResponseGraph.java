@@ -0,0 +1,102 @@
+package uk.ac.rothamsted.ide;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NullIterator;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Graph that writes every triple added to it to an HTTP response, and keeps none; used by
+ * {@link StreamingSynchronousServiceServlet}.
+ * <p>
+ * The response is started with the first triple and flushed at most every nwfp.stream.flushMillis milliseconds
+ * (default 1000), which sends it in chunks while the service is still producing triples. The graph cannot be
+ * queried.
+ */
+abstract class ResponseGraph extends GraphBase {
+
+    private static final long FLUSH_MILLIS = Long.getLong("nwfp.stream.flushMillis", 1000L);
+
+    private final HttpServletResponse response;
+    private final String contentType;
+    private boolean started;
+    private long triples;
+    private long flushedAt;
+
+    ResponseGraph(HttpServletResponse response, String contentType) {
+        this.response = response;
+        this.contentType = contentType;
+    }
+
+    /**
+     * Called with the response body before the first triple is written.
+     */
+    protected abstract void open(OutputStream out) throws IOException;
+
+    protected abstract void writeTriple(Triple triple) throws IOException;
+
+    protected abstract void flush() throws IOException;
+
+    @Override
+    public synchronized void performAdd(Triple triple) {
+        try {
+            if (!started) {
+                start();
+            }
+            // the output is serialized while the service builds it
+            Trace.Phase previous = Trace.enter(Trace.Phase.SERIALIZE);
+            try {
+                writeTriple(triple);
+            } finally {
+                Trace.exit(previous);
+            }
+            triples++;
+            long now = System.currentTimeMillis();
+            if (triples == 1 || now - flushedAt >= FLUSH_MILLIS) {
+                flush();
+                flushedAt = now;
+            }
+        } catch (IOException e) {
+            throw new JenaException(e);
+        }
+    }
+
+    @Override
+    protected ExtendedIterator<Triple> graphBaseFind(TripleMatch match) {
+        return NullIterator.instance();
+    }
+
+    /**
+     * Whether any of the response was sent; after that its status can no longer change.
+     */
+    synchronized boolean isStarted() {
+        return started || response.isCommitted();
+    }
+
+    synchronized long getTriples() {
+        return triples;
+    }
+
+    /**
+     * Sends the rest of the response, starting it if no triple was added.
+     */
+    synchronized void finish() throws IOException {
+        if (!started) {
+            start();
+        }
+        flush();
+    }
+
+    private void start() throws IOException {
+        response.setContentType(contentType);
+        open(response.getOutputStream());
+        started = true;
+        flushedAt = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,39 @@
+package uk.ac.rothamsted.ide;
+
+import org.apache.log4j.PropertyConfigurator;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import java.net.URL;
+
+/**
+ * Configures logging and starts the background work shared by the services when the web application starts,
+ * and stops it with the web application.
+ */
+public class ServicesContextListener implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        // once for the application, rather than parsing log4j.properties again on every request
+        URL log4jProperties = ServicesContextListener.class.getClassLoader().getResource("log4j.properties");
+        if (log4jProperties != null) {
+            PropertyConfigurator.configure(log4jProperties);
+        }
+        UpstreamTraffic.register();
+        Metrics.register();
+        ReferenceDataStore.warmStart();
+        MeasurementSync.start();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        MeasurementSync.stop();
+        // the pools run daemon threads, which would otherwise outlive a redeploy and pin the old class loader
+        ParallelSynchronousServiceServlet.shutdown();
+        BoundedAsynchronousServiceServlet.shutdown();
+        ReferenceDataStore.shutdown();
+        UpstreamExecutor.shutdown();
+        Metrics.unregister();
+        UpstreamTraffic.unregister();
+    }
+}
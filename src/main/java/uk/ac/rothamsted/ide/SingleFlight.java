@@ -0,0 +1,102 @@
+package uk.ac.rothamsted.ide;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical upstream calls that are in flight at the same time.
+ * <p>
+ * Calls are identified by method, endpoint, request body and the kind of result made of the response, e.g.
+ * "json" for a parsed JSON document, so that only callers expecting the same result share it. The first caller
+ * runs the call; callers arriving while it runs get the same result, or the same failure. Results are shared and
+ * must not be modified. Nothing is kept once the call completes: the next caller starts a new one.
+ */
+public final class SingleFlight {
+
+    private static final Logger log = Logger.getLogger(SingleFlight.class);
+
+    private static final ConcurrentMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    private SingleFlight() {
+    }
+
+    /**
+     * Runs the call on this thread, or waits for the identical call already in flight and returns its result.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T call(String method, String endPoint, String body, String kind, Callable<T> call) throws IOException {
+        String key = key(method, endPoint, body, kind);
+        CompletableFuture<Object> newFlight = new CompletableFuture<>();
+        CompletableFuture<Object> flight = inFlight.putIfAbsent(key, newFlight);
+        if (flight == null) {
+            flight = newFlight;
+            try {
+                newFlight.complete(call.call());
+            } catch (Throwable e) {
+                newFlight.completeExceptionally(e);
+            } finally {
+                inFlight.remove(key, newFlight);
+            }
+        } else {
+            log.info("Joining the " + method + " request to " + endPoint + " already in flight");
+        }
+        try {
+            return (T) flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + endPoint, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to call " + endPoint, cause);
+        }
+    }
+
+    /**
+     * Starts the call, or joins the identical call already in flight, without waiting for it. Cancelling the
+     * returned future does not cancel the call for the other callers.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> CompletableFuture<T> callAsync(String method, String endPoint, String body, String kind,
+                                                     Supplier<CompletableFuture<T>> call) {
+        String key = key(method, endPoint, body, kind);
+        CompletableFuture<Object> newFlight = new CompletableFuture<>();
+        CompletableFuture<Object> flight = inFlight.putIfAbsent(key, newFlight);
+        if (flight == null) {
+            flight = newFlight;
+            try {
+                call.get().whenComplete((value, failure) -> {
+                    inFlight.remove(key, newFlight);
+                    if (failure == null) {
+                        newFlight.complete(value);
+                    } else {
+                        newFlight.completeExceptionally(failure);
+                    }
+                });
+            } catch (RuntimeException e) {
+                inFlight.remove(key, newFlight);
+                newFlight.completeExceptionally(e);
+            }
+        } else {
+            log.info("Joining the " + method + " request to " + endPoint + " already in flight");
+        }
+        // a dependent future, so that one caller cancelling it leaves the shared call alone
+        return flight.thenApply(value -> (T) value);
+    }
+
+    private static String key(String method, String endPoint, String body, String kind) {
+        return method + " " + endPoint + " " + kind + "\n" + (body == null ? "" : body);
+    }
+}
@@ -0,0 +1,97 @@
+package uk.ac.rothamsted.ide;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import org.apache.log4j.Logger;
+import org.sadiframework.utils.ContentType;
+import org.sadiframework.utils.http.AcceptHeader;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Synchronous SADI service that can stream its output.
+ * <p>
+ * When the Accept header prefers application/n-triples, text/turtle or {@link BinaryRdf#CONTENT_TYPE} to the
+ * formats SADI writes itself, the output model of the request is backed by a {@link ResponseGraph}: each
+ * triple is written to the response as the service adds it instead of being kept until the whole model is
+ * serialized. Memory then no longer grows with the size of the result, and the client gets the first triples
+ * while the upstream response is still being read. Other requests are answered as before.
+ */
+public abstract class StreamingSynchronousServiceServlet extends ParallelSynchronousServiceServlet {
+
+    private static final Logger log = Logger.getLogger(StreamingSynchronousServiceServlet.class);
+
+    private static final List<String> STREAMED_CONTENT_TYPES = Arrays.asList("application/n-triples", "text/turtle", BinaryRdf.CONTENT_TYPE);
+
+    // response of the request being handled on this thread, if it is streamed
+    private final ThreadLocal<ResponseGraph> streamed = new ThreadLocal<>();
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String contentType = getStreamedContentType(request);
+        if (contentType == null) {
+            super.doPost(request, response);
+            return;
+        }
+        streamed.set(contentType.equals(BinaryRdf.CONTENT_TYPE) ? new BinaryRdfResponseGraph(response) : new NTriplesResponseGraph(response, contentType));
+        try {
+            super.doPost(request, response);
+        } finally {
+            streamed.remove();
+        }
+    }
+
+    /**
+     * The streamed content type the request prefers, or null if it prefers a format of SADI's own.
+     */
+    static String getStreamedContentType(HttpServletRequest request) {
+        AcceptHeader acceptHeader = new AcceptHeader();
+        for (Enumeration<?> headers = request.getHeaders("Accept"); headers != null && headers.hasMoreElements(); ) {
+            acceptHeader.merge((String) headers.nextElement());
+        }
+        for (AcceptHeader.ContentTypeQualityPair accepted : acceptHeader.getContentTypes()) {
+            String contentType = accepted.getContentType();
+            if (STREAMED_CONTENT_TYPES.contains(contentType)) {
+                return contentType;
+            }
+            if (ContentType.getContentType(contentType) != null) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected Model createOutputModel() {
+        ResponseGraph graph = streamed.get();
+        return graph != null ? ModelFactory.createModelForGraph(graph) : super.createOutputModel();
+    }
+
+    @Override
+    protected void outputSuccessResponse(HttpServletResponse response, Model outputModel) throws IOException {
+        if (outputModel.getGraph() instanceof ResponseGraph) {
+            ResponseGraph graph = (ResponseGraph) outputModel.getGraph();
+            graph.finish();
+            Metrics.service(getServletName()).triples.addAndGet(graph.getTriples());
+            log.info("Streamed " + graph.getTriples() + " triples");
+            return;
+        }
+        super.outputSuccessResponse(response, outputModel);
+    }
+
+    @Override
+    protected void outputErrorResponse(HttpServletResponse response, Throwable error) throws IOException {
+        ResponseGraph graph = streamed.get();
+        if (graph != null && graph.isStarted()) {
+            // too late for an error response; failing the request leaves the client with a truncated one
+            throw new IOException("Failed after part of the output was streamed", error);
+        }
+        super.outputErrorResponse(response, error);
+    }
+}
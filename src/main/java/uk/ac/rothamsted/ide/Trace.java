@@ -0,0 +1,309 @@
+package uk.ac.rothamsted.ide;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Timing breakdown of one service invocation.
+ * <p>
+ * Every thread working for an invocation (the request thread, batch workers, upstream calls) is in one
+ * {@link Phase} at a time, and the time between two phase changes goes to the phase the thread was in. Phases
+ * nest without counting twice: the time a JSON parser waits for upstream bytes goes to the transfer, not to the
+ * decoding. Time not spent in another phase goes to buildModel: mostly the service building its output, but
+ * also a thread waiting for the others. With several threads the phases add up to more than the duration of
+ * the invocation.
+ * <p>
+ * Reading the input, each upstream call and serializing the output are also recorded as spans. Finished traces
+ * are kept in a ring buffer of the last nwfp.trace.bufferSize invocations (default 256), served as JSON by
+ * {@link TraceServlet}; nwfp.trace.enabled=false turns tracing off. A phase change costs a thread local lookup
+ * and a clock read, and nothing when the thread works for no trace.
+ */
+final class Trace {
+
+    enum Phase {
+        PARSE_INPUT("parseInput"),
+        UPSTREAM_CONNECT("upstreamConnect"),
+        UPSTREAM_TRANSFER("upstreamTransfer"),
+        JSON_DECODE("jsonDecode"),
+        BUILD_MODEL("buildModel"),
+        SERIALIZE("serialize");
+
+        final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("nwfp.trace.enabled", "true"));
+    private static final int BUFFER_SIZE = Math.max(1, Integer.getInteger("nwfp.trace.bufferSize", 256));
+    // bounds the memory of invocations with many upstream calls, e.g. all pages of a measurement type
+    private static final int MAX_SPANS = 1024;
+
+    private static final AtomicLong ids = new AtomicLong();
+    private static final AtomicReferenceArray<Trace> buffer = new AtomicReferenceArray<>(BUFFER_SIZE);
+    private static final AtomicLong written = new AtomicLong();
+    private static final ThreadLocal<Clock> clock = new ThreadLocal<>();
+
+    private final long id = ids.incrementAndGet();
+    private final String service;
+    private final long startedAt = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+    private final AtomicLongArray phaseCounts = new AtomicLongArray(Phase.values().length);
+    private final List<Span> spans = new ArrayList<>();
+    private int droppedSpans;
+    private volatile long durationNanos = -1;
+    private volatile boolean failed;
+
+    private Trace(String service) {
+        this.service = service;
+    }
+
+    /**
+     * Starts tracing an invocation of the service on this thread; returns null when tracing is off.
+     */
+    static Trace begin(String service) {
+        if (!ENABLED) {
+            return null;
+        }
+        Trace trace = new Trace(service);
+        clock.set(new Clock(trace, Phase.BUILD_MODEL));
+        return trace;
+    }
+
+    /**
+     * Ends the invocation started by {@link #begin(String)} on this thread and keeps it in the ring buffer.
+     */
+    static void end(Trace trace) {
+        if (trace == null) {
+            return;
+        }
+        Clock current = clock.get();
+        if (current != null) {
+            current.stop();
+        }
+        clock.remove();
+        trace.durationNanos = System.nanoTime() - trace.startNanos;
+        buffer.set((int) (written.getAndIncrement() % BUFFER_SIZE), trace);
+    }
+
+    /**
+     * The trace of the invocation this thread works for, or null.
+     */
+    static Trace current() {
+        Clock current = clock.get();
+        return current == null ? null : current.trace;
+    }
+
+    /**
+     * Switches this thread to the phase and returns the phase to go back to with {@link #exit(Phase)}, or
+     * null when the thread works for no trace.
+     */
+    static Phase enter(Phase phase) {
+        Clock current = clock.get();
+        if (current == null) {
+            return null;
+        }
+        Phase previous = current.phase;
+        current.switchTo(phase);
+        current.trace.phaseCounts.incrementAndGet(phase.ordinal());
+        return previous;
+    }
+
+    static void exit(Phase previous) {
+        if (previous == null) {
+            return;
+        }
+        Clock current = clock.get();
+        if (current != null) {
+            current.switchTo(previous);
+        }
+    }
+
+    /**
+     * Runs the call in the trace of the calling thread, e.g. on a pool thread.
+     */
+    static <T> Callable<T> wrap(Callable<T> call) {
+        Trace trace = current();
+        if (trace == null) {
+            return call;
+        }
+        return () -> {
+            Clock previous = trace.attach();
+            try {
+                return call.call();
+            } finally {
+                trace.detach(previous);
+            }
+        };
+    }
+
+    /**
+     * {@link #wrap(Callable)} for a supplier, e.g. of CompletableFuture.supplyAsync.
+     */
+    static <T> Supplier<T> wrapSupplier(Supplier<T> supplier) {
+        Trace trace = current();
+        if (trace == null) {
+            return supplier;
+        }
+        return () -> {
+            Clock previous = trace.attach();
+            try {
+                return supplier.get();
+            } finally {
+                trace.detach(previous);
+            }
+        };
+    }
+
+    /**
+     * Records a span of the trace from startNanos (a System.nanoTime value) until now.
+     */
+    void span(String name, String detail, long startNanos) {
+        long now = System.nanoTime();
+        synchronized (spans) {
+            if (spans.size() < MAX_SPANS) {
+                spans.add(new Span(name, detail, Thread.currentThread().getName(), startNanos - this.startNanos, now - startNanos));
+            } else {
+                droppedSpans++;
+            }
+        }
+    }
+
+    void failed() {
+        failed = true;
+    }
+
+    /**
+     * The finished traces held in the ring buffer, most recent first.
+     */
+    static List<Trace> recent() {
+        List<Trace> traces = new ArrayList<>(BUFFER_SIZE);
+        long last = written.get();
+        for (long i = last - 1; i >= 0 && i >= last - BUFFER_SIZE; i--) {
+            Trace trace = buffer.get((int) (i % BUFFER_SIZE));
+            if (trace != null) {
+                traces.add(trace);
+            }
+        }
+        return traces;
+    }
+
+    String getService() {
+        return service;
+    }
+
+    JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", id);
+        json.addProperty("service", service);
+        json.addProperty("start", Instant.ofEpochMilli(startedAt).toString());
+        json.addProperty("durationMillis", millis(durationNanos));
+        json.addProperty("failed", failed);
+        JsonObject phases = new JsonObject();
+        for (Phase phase : Phase.values()) {
+            JsonObject phaseJson = new JsonObject();
+            phaseJson.addProperty("millis", millis(phaseNanos.get(phase.ordinal())));
+            phaseJson.addProperty("count", phaseCounts.get(phase.ordinal()));
+            phases.add(phase.label, phaseJson);
+        }
+        json.add("phases", phases);
+        JsonArray spansJson = new JsonArray();
+        synchronized (spans) {
+            for (Span span : spans) {
+                JsonObject spanJson = new JsonObject();
+                spanJson.addProperty("name", span.name);
+                if (span.detail != null) {
+                    spanJson.addProperty("detail", span.detail);
+                }
+                spanJson.addProperty("thread", span.thread);
+                spanJson.addProperty("startMillis", millis(span.offsetNanos));
+                spanJson.addProperty("durationMillis", millis(span.durationNanos));
+                spansJson.add(spanJson);
+            }
+            if (droppedSpans > 0) {
+                json.addProperty("droppedSpans", droppedSpans);
+            }
+        }
+        json.add("spans", spansJson);
+        return json;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000 / 1000.0;
+    }
+
+    private Clock attach() {
+        Clock previous = clock.get();
+        if (previous != null) {
+            previous.stop();
+        }
+        clock.set(new Clock(this, Phase.BUILD_MODEL));
+        return previous;
+    }
+
+    private void detach(Clock previous) {
+        clock.get().stop();
+        if (previous == null) {
+            clock.remove();
+        } else {
+            previous.restart();
+            clock.set(previous);
+        }
+    }
+
+    /**
+     * Phase of a thread working for a trace, and since when it is in it.
+     */
+    private static final class Clock {
+        final Trace trace;
+        Phase phase;
+        long since = System.nanoTime();
+
+        Clock(Trace trace, Phase phase) {
+            this.trace = trace;
+            this.phase = phase;
+        }
+
+        void switchTo(Phase next) {
+            long now = System.nanoTime();
+            trace.phaseNanos.addAndGet(phase.ordinal(), now - since);
+            phase = next;
+            since = now;
+        }
+
+        void stop() {
+            switchTo(phase);
+        }
+
+        void restart() {
+            since = System.nanoTime();
+        }
+    }
+
+    private static final class Span {
+        final String name;
+        final String detail;
+        final String thread;
+        final long offsetNanos;
+        final long durationNanos;
+
+        Span(String name, String detail, String thread, long offsetNanos, long durationNanos) {
+            this.name = name;
+            this.detail = detail;
+            this.thread = thread;
+            this.offsetNanos = offsetNanos;
+            this.durationNanos = durationNanos;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package uk.ac.rothamsted.ide;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Serves the recent {@link Trace}s at /traces as a JSON array, most recent first. The optional parameters
+ * service (a servlet name, e.g. getFieldInfo) and limit narrow the list down.
+ */
+public class TraceServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String service = request.getParameter("service");
+        int limit = Integer.MAX_VALUE;
+        try {
+            if (request.getParameter("limit") != null) {
+                limit = Integer.parseInt(request.getParameter("limit"));
+            }
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "limit must be a number");
+            return;
+        }
+        JsonArray traces = new JsonArray();
+        for (Trace trace : Trace.recent()) {
+            if (traces.size() >= limit) {
+                break;
+            }
+            if (service == null || service.equals(trace.getService())) {
+                traces.add(trace.toJson());
+            }
+        }
+        response.setContentType("application/json; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        new GsonBuilder().setPrettyPrinting().create().toJson(traces, response.getWriter());
+    }
+}
@@ -0,0 +1,40 @@
+package uk.ac.rothamsted.ide;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded thread pool shared by the services that fan a request out into several concurrent upstream calls.
+ * The number of threads is set with the system property nwfp.upstream.threads (default 16); idle threads
+ * are released after a minute. The pool is shut down with the web application.
+ */
+public final class UpstreamExecutor {
+
+    private static final int THREADS = Integer.getInteger("nwfp.upstream.threads", 16);
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "nwfp-upstream-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private UpstreamExecutor() {
+    }
+
+    public static ExecutorService get() {
+        return executor;
+    }
+
+    public static void shutdown() {
+        executor.shutdownNow();
+    }
+}
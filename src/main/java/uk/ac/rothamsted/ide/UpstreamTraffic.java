@@ -0,0 +1,82 @@
+package uk.ac.rothamsted.ide;
+
+import org.apache.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Counts the bytes {@link NwfpClient} reads per endpoint, on the wire and after decompression, and publishes
+ * them over JMX as uk.ac.rothamsted.ide:type=UpstreamTraffic.
+ */
+public final class UpstreamTraffic implements UpstreamTrafficMXBean {
+
+    private static final Logger log = Logger.getLogger(UpstreamTraffic.class);
+
+    private static final String OBJECT_NAME = "uk.ac.rothamsted.ide:type=UpstreamTraffic";
+
+    private static final ConcurrentMap<String, Counters> endpoints = new ConcurrentHashMap<>();
+
+    private UpstreamTraffic() {
+    }
+
+    static Counters of(String endPoint) {
+        return endpoints.computeIfAbsent(endPoint, k -> new Counters());
+    }
+
+    static Map<String, Counters> endpoints() {
+        return new TreeMap<>(endpoints);
+    }
+
+    public static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new UpstreamTraffic(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.info("Failed to register the upstream traffic metrics: " + e);
+        }
+    }
+
+    public static void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.info("Failed to unregister the upstream traffic metrics: " + e);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getResponses() {
+        return snapshot(counters -> counters.responses);
+    }
+
+    @Override
+    public Map<String, Long> getWireBytes() {
+        return snapshot(counters -> counters.wireBytes);
+    }
+
+    @Override
+    public Map<String, Long> getBodyBytes() {
+        return snapshot(counters -> counters.bodyBytes);
+    }
+
+    private static Map<String, Long> snapshot(Function<Counters, AtomicLong> counter) {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Counters> endpoint : endpoints.entrySet()) {
+            values.put(endpoint.getKey(), counter.apply(endpoint.getValue()).get());
+        }
+        return values;
+    }
+
+    static final class Counters {
+        final AtomicLong responses = new AtomicLong();
+        final AtomicLong wireBytes = new AtomicLong();
+        final AtomicLong bodyBytes = new AtomicLong();
+    }
+}
@@ -0,0 +1,18 @@
+package uk.ac.rothamsted.ide;
+
+import java.util.Map;
+
+/**
+ * Bytes received from the NWFP API since startup, per endpoint.
+ */
+public interface UpstreamTrafficMXBean {
+
+    /** Response bodies read, per endpoint. */
+    Map<String, Long> getResponses();
+
+    /** Body bytes as received, compressed or not, per endpoint. */
+    Map<String, Long> getWireBytes();
+
+    /** Body bytes after decompression, per endpoint. */
+    Map<String, Long> getBodyBytes();
+}
@@ -0,0 +1,67 @@
+package uk.ac.rothamsted.ide;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that a model written with {@link BinaryRdf.Encoder} reads back unchanged with {@link BinaryRdf#read}.
+ */
+public class BinaryRdfTest {
+
+    private static final String NS = "http://example.org/nwfp#";
+    private static final int RECORDS = 3000;
+
+    @Test
+    public void roundTripsMoreTermsThanTheDictionaryHolds() throws IOException {
+        Model model = ModelFactory.createDefaultModel();
+        Property value = model.createProperty(NS, "has_value");
+        Property label = model.createProperty(NS, "has_label");
+        Property unit = model.createProperty(NS, "has_unit");
+        Property previous = model.createProperty(NS, "has_previous");
+        Resource[] records = new Resource[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            records[i] = model.createResource();
+            records[i].addProperty(value, model.createTypedLiteral(String.valueOf(i), XSDDatatype.XSDint));
+            records[i].addProperty(label, model.createLiteral("record " + i, i % 2 == 0 ? "en" : "cy"));
+            // datatypes drop out of the dictionary and are defined again inside the literal that uses them
+            records[i].addProperty(unit, model.createTypedLiteral("unit " + i,
+                    TypeMapper.getInstance().getSafeTypeByName(NS + "unit" + (i % 500))));
+            if (i >= 2000) {
+                // a blank node whose slot has been overwritten since it was defined
+                records[i].addProperty(previous, records[i - 2000]);
+            }
+        }
+        assertTrue(model.size() > BinaryRdf.DICTIONARY_SIZE);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryRdf.Encoder encoder = new BinaryRdf.Encoder(out);
+        ExtendedIterator<Triple> triples = model.getGraph().find(null, null, null);
+        try {
+            while (triples.hasNext()) {
+                encoder.write(triples.next());
+            }
+        } finally {
+            triples.close();
+        }
+        encoder.flush();
+
+        Model decoded = ModelFactory.createDefaultModel();
+        BinaryRdf.read(new ByteArrayInputStream(out.toByteArray()), decoded);
+        assertEquals(model.size(), decoded.size());
+        assertTrue(model.isIsomorphicWith(decoded));
+    }
+}
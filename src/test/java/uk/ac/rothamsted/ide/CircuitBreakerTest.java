@@ -0,0 +1,87 @@
+package uk.ac.rothamsted.ide;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the state transitions of {@link CircuitBreaker} with the default window of 20 calls, at least 10 calls
+ * and a failure rate of 50%.
+ */
+public class CircuitBreakerTest {
+
+    private static final String END_POINT = "https://localhost/test";
+
+    @Test
+    public void opensOnceEnoughCallsFailed() {
+        CircuitBreaker circuit = new CircuitBreaker(END_POINT, 60000);
+        for (int i = 0; i < 9; i++) {
+            circuit.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, circuit.getState());
+        assertTrue(circuit.allowRequest());
+        circuit.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, circuit.getState());
+        assertFalse(circuit.allowRequest());
+    }
+
+    @Test
+    public void staysClosedBelowTheFailureRate() {
+        CircuitBreaker circuit = new CircuitBreaker(END_POINT, 60000);
+        for (int i = 0; i < 11; i++) {
+            circuit.onSuccess();
+        }
+        for (int i = 0; i < 9; i++) {
+            circuit.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, circuit.getState());
+        // the window is full: this failure pushes out a success and makes it 10 of 20
+        circuit.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, circuit.getState());
+    }
+
+    @Test
+    public void closesAfterASuccessfulProbe() {
+        CircuitBreaker circuit = open(new CircuitBreaker(END_POINT, 0));
+        assertTrue(circuit.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuit.getState());
+        circuit.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, circuit.getState());
+        // the failures before the probe are forgotten
+        for (int i = 0; i < 9; i++) {
+            circuit.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, circuit.getState());
+    }
+
+    @Test
+    public void opensAgainAfterAFailedProbe() {
+        CircuitBreaker circuit = open(new CircuitBreaker(END_POINT, 0));
+        assertTrue(circuit.allowRequest());
+        circuit.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, circuit.getState());
+    }
+
+    @Test
+    public void letsOneProbeThroughAtATime() throws InterruptedException {
+        CircuitBreaker circuit = open(new CircuitBreaker(END_POINT, 200));
+        assertFalse(circuit.allowRequest());
+        Thread.sleep(300);
+        assertTrue(circuit.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuit.getState());
+        assertFalse(circuit.allowRequest());
+        // a probe that does not report back is replaced
+        Thread.sleep(300);
+        assertTrue(circuit.allowRequest());
+    }
+
+    private static CircuitBreaker open(CircuitBreaker circuit) {
+        for (int i = 0; i < 10; i++) {
+            circuit.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuit.getState());
+        return circuit;
+    }
+}
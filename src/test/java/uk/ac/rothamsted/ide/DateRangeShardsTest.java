@@ -0,0 +1,63 @@
+package uk.ac.rothamsted.ide;
+
+import com.google.gson.JsonObject;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests how {@link DateRangeShards} splits a date range, with the default of 31 days per shard.
+ */
+public class DateRangeShardsTest {
+
+    @Test
+    public void splitsALongRangeAtSharedBoundaries() {
+        List<DateRangeShards.Shard> shards = DateRangeShards.split("2020-01-01", "2020-03-15");
+        assertEquals(3, shards.size());
+        assertShard(shards.get(0), "2020-01-01", "2020-02-01", "2020-02-01");
+        assertShard(shards.get(1), "2020-02-01", "2020-03-03", "2020-03-03");
+        assertShard(shards.get(2), "2020-03-03", "2020-03-15", null);
+    }
+
+    @Test
+    public void keepsARangeOfOneShardWhole() {
+        List<DateRangeShards.Shard> shards = DateRangeShards.split("2020-01-01", "2020-02-01");
+        assertEquals(1, shards.size());
+        assertShard(shards.get(0), "2020-01-01", "2020-02-01", null);
+    }
+
+    @Test
+    public void sendsDatesThatAreNotIsoDatesAsOneRange() {
+        List<DateRangeShards.Shard> shards = DateRangeShards.split("01/01/2020", "2020-12-31");
+        assertEquals(1, shards.size());
+        assertShard(shards.get(0), "01/01/2020", "2020-12-31", null);
+    }
+
+    @Test
+    public void leavesMeasurementsOnTheBoundaryToTheNextShard() {
+        List<DateRangeShards.Shard> shards = DateRangeShards.split("2020-01-01", "2020-03-15");
+        assertTrue(shards.get(0).keeps(measurement("2020-01-31T23:45:00")));
+        assertFalse(shards.get(0).keeps(measurement("2020-02-01T00:00:00")));
+        assertTrue(shards.get(1).keeps(measurement("2020-02-01T00:00:00")));
+        assertTrue(shards.get(2).keeps(measurement("2020-03-15T00:00:00")));
+        // measurements without a readable date are kept rather than lost
+        assertTrue(shards.get(0).keeps(measurement("unknown")));
+        assertTrue(shards.get(0).keeps(new JsonObject()));
+    }
+
+    private static void assertShard(DateRangeShards.Shard shard, String startDate, String endDate, String nextStartDate) {
+        assertEquals(startDate, shard.startDate);
+        assertEquals(endDate, shard.endDate);
+        assertEquals(nextStartDate, shard.nextStartDate);
+    }
+
+    private static JsonObject measurement(String dateTime) {
+        JsonObject measurement = new JsonObject();
+        measurement.addProperty("DateTime", dateTime);
+        return measurement;
+    }
+}
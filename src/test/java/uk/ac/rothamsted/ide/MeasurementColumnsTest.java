@@ -0,0 +1,108 @@
+package uk.ac.rothamsted.ide;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link MeasurementColumns} read back the measurements they were given, after a merge and after a
+ * round trip through a {@link MeasurementPartition} file.
+ */
+public class MeasurementColumnsTest {
+
+    @Test
+    public void readsBackWhatWasAdded() {
+        Measurement[] measurements = {
+                measurement("2020-01-01T00:15:00", "1.50", "Good"),
+                measurement("2020-01-01T00:30:00", "", "Missing"),
+                measurement("2020-01-01T00:45:00", "-0.001", "Good"),
+                measurement("2020-01-01T01:00:00", "12", "Estimated")};
+        MeasurementColumns columns = columns(measurements);
+        assertEquals(measurements.length, columns.size);
+        for (int row = 0; row < measurements.length; row++) {
+            assertMeasurement(measurements[row], columns.get(row));
+        }
+    }
+
+    @Test
+    public void replacesTheRowsInsideTheWindow() {
+        MeasurementColumns existing = columns(
+                measurement("2020-01-01T12:00:00", "1.0", "Good"),
+                measurement("2020-01-02T12:00:00", "2.0", "Good"),
+                measurement("2020-01-03T12:00:00", "3.0", "Good"));
+        // the replacement is out of order and lists a row past the window, which is not taken
+        MeasurementColumns replacement = columns(
+                measurement("2020-01-02T18:00:00", "2.75", "Estimated"),
+                measurement("2020-01-02T06:00:00", "2.25", "Good"),
+                measurement("2020-01-03T06:00:00", "9.9", "Good"));
+        MeasurementColumns merged = MeasurementColumns.merge(existing, startOf("2020-01-02"), startOf("2020-01-03"), replacement);
+        assertEquals(4, merged.size);
+        assertMeasurement(measurement("2020-01-01T12:00:00", "1.0", "Good"), merged.get(0));
+        assertMeasurement(measurement("2020-01-02T06:00:00", "2.25", "Good"), merged.get(1));
+        assertMeasurement(measurement("2020-01-02T18:00:00", "2.75", "Estimated"), merged.get(2));
+        assertMeasurement(measurement("2020-01-03T12:00:00", "3.0", "Good"), merged.get(3));
+    }
+
+    @Test
+    public void doesNotMergeDifferentDateTimeLayouts() {
+        MeasurementColumns existing = columns(measurement("2020-01-01T12:00:00", "1.0", "Good"));
+        MeasurementColumns replacement = columns(measurement("2020-01-02 12:00:00", "2.0", "Good"));
+        assertNull(MeasurementColumns.merge(existing, startOf("2020-01-02"), startOf("2020-01-03"), replacement));
+    }
+
+    @Test
+    public void roundTripsThroughAPartitionFile() throws Exception {
+        MeasurementColumns merged = MeasurementColumns.merge(
+                columns(measurement("2020-01-01T12:00:00.000Z", "1.0", "Good")),
+                startOf("2020-01-02"), startOf("2020-01-03"),
+                columns(measurement("2020-01-02T12:00:00.000Z", "", "Missing"),
+                        measurement("2020-01-02T13:00:00.000Z", "0.125", "Good")));
+        Path directory = Files.createTempDirectory("nwfp-store-test");
+        Path file = MeasurementPartition.file(directory, "Location 1");
+        try {
+            MeasurementPartition.write(file, merged);
+            MeasurementPartition partition = MeasurementPartition.open(file);
+            assertEquals(merged.size, partition.size());
+            for (int row = 0; row < merged.size; row++) {
+                assertMeasurement(merged.get(row), partition.get(row));
+                assertEquals(merged.timestamps[row], partition.timestamp(row));
+            }
+            assertEquals(1, partition.firstRowFrom(startOf("2020-01-02")));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private static MeasurementColumns columns(Measurement... measurements) {
+        MeasurementColumns columns = new MeasurementColumns();
+        for (Measurement measurement : measurements) {
+            assertTrue(measurement.dateTime + " " + measurement.value, columns.add(measurement));
+        }
+        return columns;
+    }
+
+    private static Measurement measurement(String dateTime, String value, String dataQuality) {
+        return new Measurement(dateTime, value, "Rainfall", "Location 1", "Catchment 1", dataQuality);
+    }
+
+    private static long startOf(String day) {
+        return LocalDate.parse(day).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+
+    private static void assertMeasurement(Measurement expected, Measurement actual) {
+        assertEquals(expected.dateTime, actual.dateTime);
+        assertEquals(expected.value, actual.value);
+        assertEquals(expected.typeDisplayName, actual.typeDisplayName);
+        assertEquals(expected.locationName, actual.locationName);
+        assertEquals(expected.catchmentDisplayName, actual.catchmentDisplayName);
+        assertEquals(expected.dataQuality, actual.dataQuality);
+    }
+}
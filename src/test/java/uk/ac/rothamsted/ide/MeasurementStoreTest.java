@@ -0,0 +1,57 @@
+package uk.ac.rothamsted.ide;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests how {@link MeasurementStore} records the day ranges it holds.
+ */
+public class MeasurementStoreTest {
+
+    @Test
+    public void mergesOverlappingAndTouchingRanges() {
+        MeasurementStore.Coverage coverage = new MeasurementStore.Coverage();
+        coverage.add(10, 20);
+        coverage.add(15, 25);
+        coverage.add(26, 30);
+        assertEquals(1, coverage.ranges.size());
+        assertEquals(Long.valueOf(30), coverage.ranges.get(10L));
+        assertTrue(coverage.covers(10, 30));
+        assertFalse(coverage.covers(9, 30));
+        assertFalse(coverage.covers(10, 31));
+    }
+
+    @Test
+    public void keepsRangesWithAGapApart() {
+        MeasurementStore.Coverage coverage = new MeasurementStore.Coverage();
+        coverage.add(10, 20);
+        coverage.add(22, 30);
+        assertEquals(2, coverage.ranges.size());
+        assertTrue(coverage.covers(12, 18));
+        assertTrue(coverage.covers(22, 30));
+        assertFalse(coverage.covers(18, 24));
+        assertNull(coverage.until(21));
+        assertEquals(Long.valueOf(20), coverage.until(15));
+    }
+
+    @Test
+    public void absorbsEveryRangeAWiderRangeSpans() {
+        MeasurementStore.Coverage coverage = new MeasurementStore.Coverage();
+        coverage.add(10, 12);
+        coverage.add(20, 22);
+        coverage.add(30, 32);
+        coverage.add(40, 42);
+        coverage.add(11, 31);
+        assertEquals(2, coverage.ranges.size());
+        assertEquals(Long.valueOf(32), coverage.ranges.get(10L));
+        assertEquals(Long.valueOf(42), coverage.ranges.get(40L));
+        // a range inside one already held changes nothing
+        coverage.add(40, 41);
+        assertEquals(Long.valueOf(42), coverage.ranges.get(40L));
+        assertEquals(Long.valueOf(32), coverage.until(10));
+    }
+}
@@ -0,0 +1,59 @@
+package uk.ac.rothamsted.ide;
+
+import com.google.gson.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests the open-addressing id index of {@link ReferenceDataStore}.
+ */
+public class ReferenceDataStoreTest {
+
+    @Test
+    public void findsEveryIdAfterGrowing() {
+        ReferenceDataStore.IdIndex index = new ReferenceDataStore.IdIndex(2);
+        JsonObject[] records = new JsonObject[1000];
+        for (int id = 0; id < records.length; id++) {
+            records[id] = record(id);
+            // ids far apart and negative ones land anywhere in the table
+            index.put(key(id), records[id]);
+        }
+        assertEquals(records.length, index.size());
+        for (int id = 0; id < records.length; id++) {
+            assertSame(records[id], index.get(key(id)));
+        }
+        assertNull(index.get(key(records.length)));
+    }
+
+    @Test
+    public void keepsTheFirstRecordOfADuplicatedId() {
+        ReferenceDataStore.IdIndex index = new ReferenceDataStore.IdIndex(4);
+        JsonObject first = record(7);
+        index.put(7, first);
+        index.put(7, record(7));
+        assertSame(first, index.get(7));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void tellsIdZeroFromAnEmptySlot() {
+        ReferenceDataStore.IdIndex index = new ReferenceDataStore.IdIndex(4);
+        assertNull(index.get(0));
+        JsonObject record = record(0);
+        index.put(0, record);
+        assertSame(record, index.get(0));
+    }
+
+    private static int key(int id) {
+        return id % 2 == 0 ? id * 65536 : -id;
+    }
+
+    private static JsonObject record(int id) {
+        JsonObject record = new JsonObject();
+        record.addProperty("id", id);
+        return record;
+    }
+}
@@ -0,0 +1,145 @@
+package uk.ac.rothamsted.ide;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares how concurrent upstream calls scale with a blocked thread per call, as the services make them
+ * on servlet threads, and with {@link NwfpClient#getJsonAsync(String, int)} on the shared upstream pool.
+ * <p>
+ * A local server answers every call after a fixed delay. For each number of concurrent calls both models
+ * are timed and the number of threads they add is reported. Run it with the project's classpath:
+ * <pre>
+ * java -cp target/classes:target/test-classes:... uk.ac.rothamsted.ide.UpstreamBenchmark [delayMillis] [calls...]
+ * </pre>
+ * The upstream pool size is set with nwfp.upstream.threads as in the services.
+ */
+public class UpstreamBenchmark {
+
+    private static final int SERVER_THREADS = 512;
+
+    public static void main(String[] args) throws Exception {
+        BasicConfigurator.configure();
+        Logger.getRootLogger().setLevel(Level.WARN);
+        // measure the execution models, not the connection limits
+        if (System.getProperty("nwfp.http.maxConnections") == null) {
+            System.setProperty("nwfp.http.maxConnections", "4096");
+        }
+        int delay = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        List<Integer> callCounts = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            callCounts.add(Integer.parseInt(args[i]));
+        }
+        if (callCounts.isEmpty()) {
+            callCounts.add(10);
+            callCounts.add(100);
+            callCounts.add(1000);
+        }
+
+        ThreadPoolExecutor serverThreads = new ThreadPoolExecutor(SERVER_THREADS, SERVER_THREADS, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        serverThreads.prestartAllCoreThreads();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), SERVER_THREADS);
+        server.setExecutor(serverThreads);
+        server.createContext("/", exchange -> {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "[{\"Id\":1,\"Name\":\"benchmark\"}]".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        String baseUrl = "http://localhost:" + server.getAddress().getPort() + "/list/";
+
+        try {
+            // warm up the client, the pool and the JIT
+            run(baseUrl, 50, true);
+            run(baseUrl, 50, false);
+            System.out.println("Upstream delay " + delay + " ms, upstream pool of " + Integer.getInteger("nwfp.upstream.threads", 16) + " threads");
+            System.out.println(String.format("%-10s %8s %10s %10s %14s", "model", "calls", "wall ms", "calls/s", "added threads"));
+            for (int calls : callCounts) {
+                for (boolean blocking : new boolean[]{true, false}) {
+                    Result result = run(baseUrl, calls, blocking);
+                    System.out.println(String.format("%-10s %8d %10d %10.1f %14d", blocking ? "blocking" : "async",
+                            calls, result.millis, calls * 1000.0 / Math.max(1, result.millis), result.addedThreads));
+                }
+            }
+        } finally {
+            server.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+    private static Result run(String baseUrl, int calls, boolean blocking) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int baseline = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+        AtomicInteger failures = new AtomicInteger();
+        long startTime = System.nanoTime();
+        if (blocking) {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> callers = new ArrayList<>();
+            for (int i = 0; i < calls; i++) {
+                String endPoint = baseUrl + i;
+                Thread caller = new Thread(() -> {
+                    try {
+                        start.await();
+                        NwfpClient.getJson(endPoint, 0);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                });
+                caller.start();
+                callers.add(caller);
+            }
+            start.countDown();
+            for (Thread caller : callers) {
+                caller.join();
+            }
+        } else {
+            List<CompletableFuture<?>> responses = new ArrayList<>();
+            for (int i = 0; i < calls; i++) {
+                responses.add(NwfpClient.getJsonAsync(baseUrl + i, 0).exceptionally(e -> {
+                    failures.incrementAndGet();
+                    return null;
+                }));
+            }
+            CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).join();
+        }
+        long millis = (System.nanoTime() - startTime) / 1000000;
+        if (failures.get() > 0) {
+            System.out.println(failures.get() + " of " + calls + " calls failed");
+        }
+        return new Result(millis, threads.getPeakThreadCount() - baseline);
+    }
+
+    private static final class Result {
+        final long millis;
+        final int addedThreads;
+
+        Result(long millis, int addedThreads) {
+            this.millis = millis;
+            this.addedThreads = addedThreads;
+        }
+    }
+}